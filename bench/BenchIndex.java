@@ -0,0 +1,199 @@
+/**
+ *  BenchIndex builds a synthetic in-memory index for QryBenchmark.
+ *  Each document's body is a sequence of filler terms (f0, f1, ...,
+ *  drawn from a skewed distribution) into which the query terms t0,
+ *  t1, ... are placed.  Term ti occurs in a fraction df[i] of the
+ *  documents, with a mean tf of meanTf.  Its positions are either
+ *  uniform over the document or clustered within window positions of
+ *  a point chosen for the document, which controls how often the
+ *  proximity operators match.  An occurrence whose position already
+ *  holds a query term is moved to the nearest free position, so
+ *  query terms do not overwrite each other and the realized df and
+ *  tf are the ones that were drawn.
+ *
+ *  The tokens are given to Lucene directly, so the index does not
+ *  depend on the analyzer, but the similarity is DocLenStoreSimilarity,
+ *  so DocLengthStore and the ranked retrieval models work as they do
+ *  on a real index.  Each document has an externalId.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+public class BenchIndex {
+
+  public int numDocs = 20000;
+  public double[] df = { 0.3, 0.1, 0.01 };
+  public double meanTf = 2.0;
+  public int meanLength = 100;
+  public boolean clustered = false;
+  public int window = 8;
+  public long seed = 42;
+
+  private static final int NUM_FILLERS = 1000;
+
+  /**
+   *  Get the name of the i'th query term.
+   */
+  public static String term(int i) {
+    return "t" + i;
+  }
+
+  /**
+   *  Build the index.
+   *  @return The directory that holds the index.
+   *  @throws IOException
+   */
+  public Directory build() throws IOException {
+
+    Directory dir = new RAMDirectory ();
+    IndexWriterConfig config =
+      new IndexWriterConfig (Version.LUCENE_43, QryEval.analyzer);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setRAMBufferSizeMB (64);
+
+    IndexWriter writer = new IndexWriter (dir, config);
+    Random random = new Random (this.seed);
+
+    String[] fillers = new String[NUM_FILLERS];
+    for (int i = 0; i < NUM_FILLERS; i++)
+      fillers[i] = "f" + i;
+
+    String[] terms = new String[this.df.length];
+    for (int i = 0; i < terms.length; i++)
+      terms[i] = term (i);
+
+    FieldType bodyType = new FieldType (TextField.TYPE_NOT_STORED);
+    bodyType.freeze ();
+
+    for (int docid = 0; docid < this.numDocs; docid++) {
+
+      //  Lengths are uniform in [meanLength/2, 3*meanLength/2].
+
+      int length = Math.max (1, this.meanLength / 2 + random.nextInt (this.meanLength + 1));
+      String[] tokens = new String[length];
+
+      for (int i = 0; i < length; i++) {
+	double x = random.nextDouble ();
+	tokens[i] = fillers[(int) (NUM_FILLERS * x * x)];
+      }
+
+      boolean[] taken = new boolean[length];	// Positions that hold query terms
+      int center = random.nextInt (length);
+
+      for (int t = 0; t < terms.length; t++) {
+	if (random.nextDouble () >= this.df[t])
+	  continue;
+
+	int tf = 1 + geometric (random, this.meanTf - 1.0);
+
+	for (int j = 0; j < tf; j++) {
+	  int position = this.clustered ?
+	    center - this.window + random.nextInt (2 * this.window + 1) :
+	    random.nextInt (length);
+	  position = nearestFree (taken, Math.min (length - 1, Math.max (0, position)));
+
+	  //  If every position holds a query term, lengthen the document.
+
+	  if (position < 0) {
+	    position = length ++;
+	    tokens = Arrays.copyOf (tokens, length);
+	    taken = Arrays.copyOf (taken, length);
+	  }
+
+	  tokens[position] = terms[t];
+	  taken[position] = true;
+	}
+      }
+
+      //  External ids are a permutation of the internal ids, so that
+      //  sorting by external id is not the same as sorting by docid.
+
+      Document doc = new Document ();
+      doc.add (new StringField ("externalId",
+				String.format ("bench-%08d", (docid * 7919L) % this.numDocs),
+				Field.Store.YES));
+      doc.add (new Field ("body", new ArrayTokenStream (tokens), bodyType));
+      writer.addDocument (doc);
+    }
+
+    writer.close ();
+    return dir;
+  }
+
+  /**
+   *  Find the free position that is nearest to a position, or -1 if
+   *  there is none.
+   */
+  private static int nearestFree(boolean[] taken, int position) {
+    for (int d = 0; d < taken.length; d++) {
+      if ((position - d >= 0) && ! taken[position - d])
+	return position - d;
+      if ((position + d < taken.length) && ! taken[position + d])
+	return position + d;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Draw from a geometric distribution with the given mean.
+   */
+  private static int geometric(Random random, double mean) {
+    if (mean <= 0.0)
+      return 0;
+
+    double p = 1.0 / (mean + 1.0);
+    return (int) (Math.log (1.0 - random.nextDouble ()) / Math.log (1.0 - p));
+  }
+
+  public String toString() {
+    return ("docs=" + this.numDocs + " df=" + Arrays.toString (this.df) +
+	    " meanTf=" + this.meanTf + " meanLength=" + this.meanLength +
+	    " positions=" + (this.clustered ? "clustered window=" + this.window : "uniform") +
+	    " seed=" + this.seed);
+  }
+
+  /**
+   *  A TokenStream over an array of tokens that are already processed.
+   */
+  private static class ArrayTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAttribute = addAttribute (CharTermAttribute.class);
+    private final String[] tokens;
+    private int next = 0;
+
+    ArrayTokenStream(String[] tokens) {
+      this.tokens = tokens;
+    }
+
+    public boolean incrementToken() {
+      if (this.next == this.tokens.length)
+	return false;
+
+      clearAttributes ();
+      this.termAttribute.setEmpty ().append (this.tokens[this.next++]);
+      return true;
+    }
+
+    public void reset() {
+      this.next = 0;
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/**
+ *  IndexGenerator builds a synthetic Lucene 4.3 index with the schema
+ *  that QryEval expects, and a query log that matches it, so that
+ *  QryEval can be run and timed without the ClueWeb index.
+ *
+ *  Every document has body, title, url, keywords and inlink fields,
+ *  indexed with positions and term vectors, and a stored externalId.
+ *  Norms come from DocLenStoreSimilarity.  Terms are drawn from a
+ *  vocabulary of made-up words with Zipfian frequencies, and body
+ *  lengths follow a Pareto (continuous Zipf) distribution.  Every
+ *  word of the vocabulary is unchanged by the query analyzer, so
+ *  queries find the terms that were indexed.
+ *
+ *  The query log has the format of a QryEval query file.  Distinct
+ *  queries (bags of words, #AND, #OR, #NEAR/n, #WINDOW/n, #SYN and
+ *  .title terms) are generated first, and the log draws from them
+ *  with Zipfian frequencies, so popular queries repeat as they do in
+ *  real logs.  A parameter file for QryEval is written next to the
+ *  query log.
+ *
+ *  Usage:  java IndexGenerator indexPath=path [name=value ...]
+ *
+ *    docs=n            Number of documents (default 100000)
+ *    vocabulary=n      Number of distinct words (default 50000)
+ *    zipf=s            Exponent of the term distribution (default 1.0)
+ *    length=n          Minimum body length; the mean is twice this
+ *                      (default 150)
+ *    maxLength=n       Maximum body length (default 10000)
+ *    queries=n         Number of queries in the log (default 1000)
+ *    distinctQueries=n Number of distinct queries (default queries/2)
+ *    queryFilePath=p   The query log (default indexPath/queries.txt)
+ *    seed=n            Random seed (default 42)
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+public class IndexGenerator {
+
+  private static final String[] CONSONANTS =
+    { "b", "d", "f", "g", "k", "l", "m", "n", "p", "r", "t", "v", "z" };
+  private static final String[] VOWELS = { "a", "i", "o", "u" };
+
+  private int numDocs = 100000;
+  private int vocabularySize = 50000;
+  private double zipf = 1.0;
+  private int minLength = 150;
+  private int maxLength = 10000;
+  private int numQueries = 1000;
+  private int numDistinctQueries = -1;
+  private long seed = 42;
+
+  private String[] vocabulary;
+  private Zipf terms;
+
+  public static void main(String[] args) throws Exception {
+
+    Map<String, String> params = new HashMap<String, String> ();
+
+    for (String arg : args) {
+      int eq = arg.indexOf ('=');
+
+      if (eq < 0) {
+	System.err.println ("Error:  Expected name=value, found " + arg);
+	System.exit (1);
+      }
+
+      params.put (arg.substring (0, eq).trim (), arg.substring (eq + 1).trim ());
+    }
+
+    if (!params.containsKey ("indexPath")) {
+      System.err.println ("Usage:  java IndexGenerator indexPath=path [name=value ...]");
+      System.exit (1);
+    }
+
+    IndexGenerator generator = new IndexGenerator ();
+
+    if (params.containsKey ("docs"))
+      generator.numDocs = Integer.parseInt (params.get ("docs"));
+    if (params.containsKey ("vocabulary"))
+      generator.vocabularySize = Integer.parseInt (params.get ("vocabulary"));
+    if (params.containsKey ("zipf"))
+      generator.zipf = Double.parseDouble (params.get ("zipf"));
+    if (params.containsKey ("length"))
+      generator.minLength = Integer.parseInt (params.get ("length"));
+    if (params.containsKey ("maxLength"))
+      generator.maxLength = Integer.parseInt (params.get ("maxLength"));
+    if (params.containsKey ("queries"))
+      generator.numQueries = Integer.parseInt (params.get ("queries"));
+    if (params.containsKey ("distinctQueries"))
+      generator.numDistinctQueries = Integer.parseInt (params.get ("distinctQueries"));
+    if (params.containsKey ("seed"))
+      generator.seed = Long.parseLong (params.get ("seed"));
+
+    File indexPath = new File (params.get ("indexPath"));
+    File queryFilePath = params.containsKey ("queryFilePath") ?
+      new File (params.get ("queryFilePath")) : new File (indexPath, "queries.txt");
+
+    long start = System.currentTimeMillis ();
+
+    generator.makeVocabulary ();
+    generator.writeIndex (indexPath);
+    generator.writeQueries (queryFilePath);
+    writeParameterFile (indexPath, queryFilePath);
+
+    System.out.println ("Wrote " + generator.numDocs + " documents to " + indexPath +
+			" and " + generator.numQueries + " queries to " + queryFilePath +
+			" in " + (System.currentTimeMillis () - start) / 1000.0 + " seconds");
+  }
+
+  /**
+   *  Make the vocabulary.  Words are random consonant-vowel syllables.
+   *  A word is kept only if the query analyzer leaves it unchanged
+   *  (it is not a stopword and the stemmer does not change it).
+   */
+  private void makeVocabulary() throws IOException {
+
+    Random random = new Random (this.seed);
+    Set<String> seen = new HashSet<String> ();
+    this.vocabulary = new String[this.vocabularySize];
+
+    for (int i = 0; i < this.vocabularySize; ) {
+
+      //  Frequent words are short, as in natural language.
+
+      int syllables = 1 + (int) Math.min (4, Math.log10 (i + 10)) + random.nextInt (2);
+      StringBuilder word = new StringBuilder ();
+
+      for (int j = 0; j < syllables; j++)
+	word.append (CONSONANTS[random.nextInt (CONSONANTS.length)])
+	  .append (VOWELS[random.nextInt (VOWELS.length)]);
+
+      String w = word.toString ();
+      String[] analyzed = QryEval.tokenizeQuery (w);
+
+      if ((analyzed.length == 1) && analyzed[0].equals (w) && seen.add (w))
+	this.vocabulary[i++] = w;
+    }
+
+    this.terms = new Zipf (this.vocabularySize, this.zipf);
+  }
+
+  /**
+   *  Write the index.
+   */
+  private void writeIndex(File indexPath) throws IOException {
+
+    IndexWriterConfig config =
+      new IndexWriterConfig (Version.LUCENE_43, QryEval.analyzer);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setRAMBufferSizeMB (256);
+
+    IndexWriter writer = new IndexWriter (FSDirectory.open (indexPath), config);
+
+    FieldType textType = new FieldType (TextField.TYPE_NOT_STORED);
+    textType.setStoreTermVectors (true);
+    textType.setStoreTermVectorPositions (true);
+    textType.freeze ();
+
+    Random random = new Random (this.seed + 1);
+
+    //  Documents are written in a shuffled order of their external
+    //  ids, so internal and external id order differ.
+
+    int[] order = new int[this.numDocs];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt (i + 1);
+      int t = order[i];
+      order[i] = order[j];
+      order[j] = t;
+    }
+
+    StringBuilder text = new StringBuilder ();
+
+    for (int d = 0; d < this.numDocs; d++) {
+
+      Document doc = new Document ();
+      doc.add (new StringField ("externalId",
+				String.format ("synthetic-%08d", order[d]), Field.Store.YES));
+
+      //  Body lengths are Pareto with alpha 2, so the mean is twice
+      //  the minimum length.
+
+      int bodyLength = (int) Math.min (this.maxLength,
+				       this.minLength / Math.sqrt (1.0 - random.nextDouble ()));
+
+      doc.add (new Field ("body", this.words (random, bodyLength, text), textType));
+      doc.add (new Field ("title", this.words (random, 2 + random.nextInt (8), text), textType));
+      doc.add (new Field ("url", "http://www." + this.word (random) + ".com/" +
+			  this.word (random) + "/" + this.word (random) + ".html", textType));
+      doc.add (new Field ("keywords", this.words (random, random.nextInt (6), text), textType));
+      doc.add (new Field ("inlink", this.words (random, random.nextInt (30), text), textType));
+
+      writer.addDocument (doc);
+
+      if ((d + 1) % 10000 == 0)
+	System.out.println ((d + 1) + " documents");
+    }
+
+    writer.close ();
+  }
+
+  private String word(Random random) {
+    return this.vocabulary[this.terms.next (random)];
+  }
+
+  private String words(Random random, int n, StringBuilder text) {
+    text.setLength (0);
+
+    for (int i = 0; i < n; i++)
+      text.append (this.word (random)).append (' ');
+
+    return text.toString ();
+  }
+
+  /**
+   *  Write the query log.
+   */
+  private void writeQueries(File queryFilePath) throws IOException {
+
+    Random random = new Random (this.seed + 2);
+    int numDistinct = (this.numDistinctQueries > 0) ?
+      this.numDistinctQueries : Math.max (1, this.numQueries / 2);
+    String[] distinct = new String[numDistinct];
+
+    for (int i = 0; i < numDistinct; i++)
+      distinct[i] = this.query (random);
+
+    Zipf popularity = new Zipf (numDistinct, 1.0);
+    BufferedWriter writer = new BufferedWriter (new FileWriter (queryFilePath));
+
+    try {
+      for (int i = 1; i <= this.numQueries; i++) {
+	writer.write (i + ":" + distinct[popularity.next (random)]);
+	writer.newLine ();
+      }
+    } finally {
+      writer.close ();
+    }
+  }
+
+  /**
+   *  Make a query.  Query terms skip the most frequent words, which
+   *  act like stopwords, and favor the rest by frequency.
+   */
+  private String query(Random random) {
+
+    int numTerms = 1 + random.nextInt (4);
+    String[] words = new String[numTerms];
+
+    for (int i = 0; i < numTerms; i++) {
+      int rank;
+      do {
+	rank = this.terms.next (random);
+      } while (rank < Math.min (50, this.vocabularySize / 10));
+      words[i] = this.vocabulary[rank];
+    }
+
+    String args = join (words);
+    double x = random.nextDouble ();
+
+    if ((x < 0.50) || (numTerms == 1))
+      return args;
+    else if (x < 0.65)
+      return "#AND(" + args + ")";
+    else if (x < 0.72)
+      return "#OR(" + args + ")";
+    else if (x < 0.82)
+      return "#NEAR/" + (1 + random.nextInt (3)) + "(" + args + ")";
+    else if (x < 0.87)
+      return "#WINDOW/" + (numTerms + random.nextInt (8)) + "(" + args + ")";
+    else if (x < 0.92)
+      return "#AND(" + words[0] + " #SYN(" + join (Arrays.copyOfRange (words, 1, numTerms)) + "))";
+    else
+      return "#AND(" + words[0] + ".title " + join (Arrays.copyOfRange (words, 1, numTerms)) + ")";
+  }
+
+  private static String join(String[] words) {
+    StringBuilder s = new StringBuilder ();
+
+    for (String word : words) {
+      if (s.length () > 0)
+	s.append (' ');
+      s.append (word);
+    }
+
+    return s.toString ();
+  }
+
+  /**
+   *  Write a QryEval parameter file for the index and query log,
+   *  next to the query log.
+   */
+  private static void writeParameterFile(File indexPath, File queryFilePath)
+    throws IOException {
+
+    File parent = queryFilePath.getAbsoluteFile ().getParentFile ();
+    BufferedWriter writer =
+      new BufferedWriter (new FileWriter (new File (parent, "parameterFile.txt")));
+
+    try {
+      writer.write ("indexPath=" + indexPath.getAbsolutePath ());
+      writer.newLine ();
+      writer.write ("retrievalAlgorithm=Indri");
+      writer.newLine ();
+      writer.write ("queryFilePath=" + queryFilePath.getAbsolutePath ());
+      writer.newLine ();
+      writer.write ("trecEvalOutputPath=" +
+		    new File (parent, "queries.teIn").getAbsolutePath ());
+      writer.newLine ();
+    } finally {
+      writer.close ();
+    }
+  }
+
+  /**
+   *  Draws ranks 0..n-1 with probability proportional to
+   *  1 / (rank + 1)^s, by binary search over the cumulative
+   *  distribution.
+   */
+  private static class Zipf {
+
+    private final double[] cdf;
+
+    Zipf(int n, double s) {
+      this.cdf = new double[n];
+      double sum = 0.0;
+
+      for (int i = 0; i < n; i++) {
+	sum += 1.0 / Math.pow (i + 1, s);
+	this.cdf[i] = sum;
+      }
+
+      for (int i = 0; i < n; i++)
+	this.cdf[i] /= sum;
+    }
+
+    int next(Random random) {
+      int rank = Arrays.binarySearch (this.cdf, random.nextDouble ());
+      return Math.min (this.cdf.length - 1, (rank >= 0) ? rank : -rank - 1);
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ *  QryBenchmark measures the throughput and allocation rate of the
+ *  parts of QryEval that dominate query evaluation:  building an
+ *  InvList, evaluating #AND, #OR, #NEAR/n and #SYN, parsing and
+ *  tokenizing queries (with the token cache, which a real query log
+ *  mostly hits, and without it, which measures the analyzer), and
+ *  sorting and formatting results.  The
+ *  postings come from a synthetic index (BenchIndex) whose document
+ *  frequencies and position distribution are set on the command line.
+ *
+ *  Usage:  java QryBenchmark [name=value ...]
+ *
+ *    docs=n                   Number of documents (default 20000)
+ *    df=f,f,...               Document frequency (as a fraction) of each
+ *                             query term t0, t1, ... (default 0.3,0.1,0.01)
+ *    tf=x                     Mean tf of a query term (default 2)
+ *    length=n                 Mean document length (default 100)
+ *    positions=uniform|clustered  Position distribution (default uniform)
+ *    window=n                 Cluster width for clustered positions (default 8)
+ *    near=n                   Distance of #NEAR/n (default 4)
+ *    model=name               Retrieval model (default RankedBoolean)
+ *    warmup=n, iterations=n   Iterations before and during measurement (default 3, 5)
+ *    time=ms                  Length of an iteration (default 1000)
+ *    include=name,...         Benchmarks to run (default all)
+ *
+ *  The output follows the layout of JMH's throughput mode with the GC
+ *  profiler:  operations per second, allocation rate, bytes allocated
+ *  per operation, and garbage collections, each as mean +- standard
+ *  deviation over the measured iterations.  Allocation is measured
+ *  with the thread allocation counter of the JVM, so benchmarks run
+ *  on one thread.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.lang.management.*;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+
+public class QryBenchmark {
+
+  /**
+   *  One operation of a benchmark.  The result is consumed so that
+   *  the work is not optimized away.
+   */
+  interface Workload {
+    Object run() throws Exception;
+  }
+
+  private static volatile int sink;
+
+  private static int warmup = 3;
+  private static int iterations = 5;
+  private static long iterationNanos = 1000L * 1000000L;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean ();
+
+  public static void main(String[] args) throws Exception {
+
+    Map<String, String> params = new HashMap<String, String> ();
+
+    for (String arg : args) {
+      int eq = arg.indexOf ('=');
+
+      if (eq < 0) {
+	System.err.println ("Error:  Expected name=value, found " + arg);
+	System.exit (1);
+      }
+
+      params.put (arg.substring (0, eq).trim (), arg.substring (eq + 1).trim ());
+    }
+
+    //  Build the index.
+
+    BenchIndex index = new BenchIndex ();
+
+    if (params.containsKey ("docs"))
+      index.numDocs = Integer.parseInt (params.get ("docs"));
+    if (params.containsKey ("df")) {
+      String[] dfs = params.get ("df").split (",");
+      index.df = new double[dfs.length];
+      for (int i = 0; i < dfs.length; i++)
+	index.df[i] = Double.parseDouble (dfs[i]);
+    }
+    if (params.containsKey ("tf"))
+      index.meanTf = Double.parseDouble (params.get ("tf"));
+    if (params.containsKey ("length"))
+      index.meanLength = Integer.parseInt (params.get ("length"));
+    if (params.containsKey ("positions"))
+      index.clustered = params.get ("positions").equalsIgnoreCase ("clustered");
+    if (params.containsKey ("window"))
+      index.window = Integer.parseInt (params.get ("window"));
+    if (params.containsKey ("warmup"))
+      warmup = Integer.parseInt (params.get ("warmup"));
+    if (params.containsKey ("iterations"))
+      iterations = Integer.parseInt (params.get ("iterations"));
+    if (params.containsKey ("time"))
+      iterationNanos = Long.parseLong (params.get ("time")) * 1000000L;
+
+    int near = params.containsKey ("near") ? Integer.parseInt (params.get ("near")) : 4;
+
+    System.out.println ("Index:  " + index);
+
+    QryEval.READER = DirectoryReader.open (index.build ());
+
+    QryEval.externalIdTableFile = null;		// Build the table in memory
+
+    CollectionStats stats =
+      new CollectionStats (QryEval.READER, new DocLengthStore (QryEval.READER));
+    String modelName = params.containsKey ("model") ? params.get ("model") : "RankedBoolean";
+    RetrievalModel model = null;
+
+    if (modelName.equalsIgnoreCase ("UnrankedBoolean"))
+      model = new RetrievalModelUnrankedBoolean ();
+    else if (modelName.equalsIgnoreCase ("RankedBoolean"))
+      model = new RetrievalModelRankedBoolean ();
+    else if (modelName.equalsIgnoreCase ("BM25"))
+      model = new RetrievalModelBM25 (stats);
+    else if (modelName.equalsIgnoreCase ("Indri"))
+      model = new RetrievalModelIndri (stats);
+    else {
+      System.err.println ("Error:  Unknown retrieval model " + modelName);
+      System.exit (1);
+    }
+
+    System.out.println ("Model:  " + modelName);
+
+    //  The queries use every query term.
+
+    String terms = "";
+    for (int i = 0; i < index.df.length; i++)
+      terms += " " + BenchIndex.term (i);
+
+    final String[] queries = {
+      "#AND(" + terms + " )",
+      "#OR(" + terms + " )",
+      "#NEAR/" + near + "(" + terms + " )",
+      "#SYN(" + terms + " )"
+    };
+
+    final String[] words = {
+      "apple", "pies", "running", "the", "internet", "families", "banks",
+      BenchIndex.term (0), "cheap.title", "computers"
+    };
+
+    final RetrievalModel r = model;
+    final Qryop and = QryEval.parseQuery (queries[0]);
+    final Qryop or = QryEval.parseQuery (queries[1]);
+    final Qryop nearOp = QryEval.parseQuery (queries[2]);
+    final Qryop syn = QryEval.parseQuery (queries[3]);
+    final QryResult orResult = or.evaluate (model);
+
+    //  The benchmarks, in the order that they run.
+
+    Map<String, Workload> benchmarks = new LinkedHashMap<String, Workload> ();
+
+    benchmarks.put ("invList", new Workload () {
+	public Object run() throws Exception {
+	  return new InvList (BenchIndex.term (0), "body");
+	}
+      });
+    benchmarks.put ("and", new Workload () {
+	public Object run() throws Exception {
+	  return and.evaluate (r);
+	}
+      });
+    benchmarks.put ("or", new Workload () {
+	public Object run() throws Exception {
+	  return or.evaluate (r);
+	}
+      });
+    benchmarks.put ("near", new Workload () {
+	public Object run() throws Exception {
+	  return nearOp.evaluate (r);
+	}
+      });
+    benchmarks.put ("syn", new Workload () {
+	public Object run() throws Exception {
+	  return syn.evaluate (r);
+	}
+      });
+
+    //  The workloads cycle through a few strings, so after the first
+    //  pass the token cache would answer every lookup.  The uncached
+    //  variants turn the cache off.
+
+    final int tokenCacheSize = QryEval.tokenCacheSize;
+
+    benchmarks.put ("parseQuery", new Workload () {
+	int next = 0;
+	public Object run() throws Exception {
+	  QryEval.tokenCacheSize = 0;
+	  return QryEval.parseQuery (queries[next++ % queries.length]);
+	}
+      });
+    benchmarks.put ("parseQueryCached", new Workload () {
+	int next = 0;
+	public Object run() throws Exception {
+	  QryEval.tokenCacheSize = tokenCacheSize;
+	  return QryEval.parseQuery (queries[next++ % queries.length]);
+	}
+      });
+    benchmarks.put ("tokenizeQuery", new Workload () {
+	int next = 0;
+	public Object run() throws Exception {
+	  QryEval.tokenCacheSize = 0;
+	  return QryEval.tokenizeQuery (words[next++ % words.length]);
+	}
+      });
+    benchmarks.put ("tokenizeQueryCached", new Workload () {
+	int next = 0;
+	public Object run() throws Exception {
+	  QryEval.tokenCacheSize = tokenCacheSize;
+	  return QryEval.tokenizeQuery (words[next++ % words.length]);
+	}
+      });
+
+    //  formatResults selects the top documents in place, so each
+    //  operation works on a copy of the #OR results.  The copy is part
+    //  of the measured time.
+
+    benchmarks.put ("printResults", new Workload () {
+	public Object run() throws Exception {
+	  QryResult result = new QryResult ();
+	  result.docScores.addAll (orResult.docScores);
+	  return QryEval.formatResults ("1", result);
+	}
+      });
+
+    Set<String> include = null;
+
+    if (params.containsKey ("include"))
+      include = new HashSet<String> (Arrays.asList (params.get ("include").split (",")));
+
+    System.out.println ();
+    System.out.println (String.format ("%-32s %5s %3s %14s    %12s  %s",
+				       "Benchmark", "Mode", "Cnt", "Score", "Error", "Units"));
+
+    for (Map.Entry<String, Workload> benchmark : benchmarks.entrySet ())
+      if ((include == null) || include.contains (benchmark.getKey ()))
+	measure (benchmark.getKey (), benchmark.getValue ());
+  }
+
+  /**
+   *  Run the warmup and measured iterations of a benchmark and print
+   *  its results.
+   */
+  private static void measure(String name, Workload workload) throws Exception {
+
+    for (int i = 0; i < warmup; i++)
+      iteration (workload);
+
+    double[][] results = new double[iterations][];
+
+    for (int i = 0; i < iterations; i++)
+      results[i] = iteration (workload);
+
+    print (name, "ops/s", results, 0);
+    print (name + ":gc.alloc.rate", "MB/sec", results, 1);
+    print (name + ":gc.alloc.rate.norm", "B/op", results, 2);
+    print (name + ":gc.count", "counts", results, 3);
+    print (name + ":gc.time", "ms", results, 4);
+  }
+
+  /**
+   *  Run a benchmark for one iteration.  Operations run in batches
+   *  whose size doubles until a batch takes at least 10 microseconds,
+   *  so that reading the clock does not dominate short operations.
+   *  @return Operations per second, MB allocated per second, bytes
+   *    allocated per operation, garbage collections, and milliseconds
+   *    spent in garbage collection.
+   */
+  private static double[] iteration(Workload workload) throws Exception {
+
+    long thread = Thread.currentThread ().getId ();
+    long gcCount = gcCount ();
+    long gcTime = gcTime ();
+    long allocated = THREADS.getThreadAllocatedBytes (thread);
+    long start = System.nanoTime ();
+    long elapsed = 0;
+    long ops = 0;
+    int batch = 1;
+    int hash = 0;
+
+    while (elapsed < iterationNanos) {
+      long batchStart = System.nanoTime ();
+
+      for (int i = 0; i < batch; i++)
+	hash += System.identityHashCode (workload.run ());
+
+      long now = System.nanoTime ();
+
+      ops += batch;
+      elapsed = now - start;
+
+      if (now - batchStart < 10000L)
+	batch *= 2;
+    }
+
+    allocated = THREADS.getThreadAllocatedBytes (thread) - allocated;
+    sink += hash;
+
+    double seconds = elapsed / 1e9;
+
+    return new double[] {
+      ops / seconds,
+      allocated / seconds / (1024.0 * 1024.0),
+      (double) allocated / ops,
+      gcCount () - gcCount,
+      gcTime () - gcTime
+    };
+  }
+
+  private static void print(String name, String units, double[][] results, int column) {
+
+    double mean = 0.0;
+    for (double[] result : results)
+      mean += result[column];
+    mean /= results.length;
+
+    double variance = 0.0;
+    for (double[] result : results)
+      variance += (result[column] - mean) * (result[column] - mean);
+
+    double stdev = (results.length > 1) ? Math.sqrt (variance / (results.length - 1)) : 0.0;
+
+    System.out.println (String.format (Locale.ROOT, "%-32s %5s %3d %14.3f +- %12.3f  %s",
+				       name, "thrpt", results.length, mean, stdev, units));
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans ())
+      count += Math.max (0, gc.getCollectionCount ());
+    return count;
+  }
+
+  private static long gcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans ())
+      time += Math.max (0, gc.getCollectionTime ());
+    return time;
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ *  BoundedCache is a cache that holds at most a given number of
+ *  values, such as TermVectors or the stems of query strings.  It is
+ *  shared by all query evaluation threads.
+ *
+ *  Lookups do not lock.  The values are in a ConcurrentHashMap, and
+ *  recency is sampled, as in InvListCache:  each value remembers
+ *  roughly when it was last used, and when the cache is full, the
+ *  least recently used of a few randomly chosen values is evicted.
+ *  Only adding a value locks.  load computes a value that is not
+ *  cached; if several threads miss on the same key at once, one of
+ *  them computes it and the others wait for it.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BoundedCache<K, V> {
+
+  //  The number of values that are sampled to choose one to evict,
+  //  and how stale (in nanoseconds) a value's last use time may be
+  //  before a lookup updates it.
+
+  private static final int SAMPLE_SIZE = 8;
+  private static final long RECENCY_GRANULARITY = 1000000;
+
+  /**
+   *  Computes a value that is not cached.
+   */
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+
+  /**
+   *  A cached value.
+   */
+  private static class Entry<K, V> {
+    final K key;
+    final V value;
+    volatile long lastUsed;
+    int index;			// The entry's position in entries
+
+    Entry(K key, V value) {
+      this.key = key;
+      this.value = value;
+      this.lastUsed = System.nanoTime();
+    }
+  }
+
+  private ConcurrentHashMap<K, Entry<K, V>> values =
+    new ConcurrentHashMap<K, Entry<K, V>>();
+
+  //  The entries in no particular order, so that they can be sampled.
+  //  Changed only by put.
+
+  private ArrayList<Entry<K, V>> entries = new ArrayList<Entry<K, V>>();
+
+  //  Values that are being computed by load.
+
+  private ConcurrentHashMap<K, FutureTask<V>> loading =
+    new ConcurrentHashMap<K, FutureTask<V>>();
+
+  /**
+   *  Get a cached value.
+   *  @param key The key of the value.
+   *  @return The value, or null if it is not cached.
+   */
+  public V get(K key) {
+
+    Entry<K, V> entry = this.values.get (key);
+
+    if (entry == null)
+      return null;
+
+    long now = System.nanoTime();
+
+    if (now - entry.lastUsed > RECENCY_GRANULARITY)
+      entry.lastUsed = now;
+
+    return entry.value;
+  }
+
+  /**
+   *  Compute a value that get did not find, and cache it.  If another
+   *  thread is already computing the value, wait for it instead of
+   *  computing the value again.
+   *  @param key The key of the value.
+   *  @param maxSize The maximum number of cached values.  If it is 0
+   *    or less, the value is computed and not cached.
+   *  @param loader Computes the value.
+   *  @return The value.
+   *  @throws IOException
+   */
+  public V load(final K key, final int maxSize, final Loader<V> loader)
+    throws IOException {
+
+    if (maxSize <= 0)
+      return loader.load();
+
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+	public V call() throws IOException {
+
+	  //  The value may have been cached after the caller missed it.
+
+	  Entry<K, V> entry = values.get (key);
+
+	  if (entry != null)
+	    return entry.value;
+
+	  V value = loader.load();
+	  put (key, value, maxSize);
+	  return value;
+	}
+      });
+
+    FutureTask<V> running = this.loading.putIfAbsent (key, task);
+
+    if (running == null) {
+      running = task;
+
+      try {
+	task.run();
+      } finally {
+	this.loading.remove (key, task);
+      }
+    }
+
+    return getResult (running);
+  }
+
+  /**
+   *  Get the result of a load, passing on the exception if it failed.
+   */
+  private static <V> V getResult(FutureTask<V> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException ("Interrupted while waiting for a cached value");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+	throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+	throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)
+	throw (Error) e.getCause();
+      throw new IOException (e.getCause());
+    }
+  }
+
+  /**
+   *  Add a value, evicting values until there are at most maxSize.
+   */
+  private synchronized void put(K key, V value, int maxSize) {
+
+    if (this.values.containsKey (key))
+      return;
+
+    Entry<K, V> entry = new Entry<K, V> (key, value);
+    entry.index = this.entries.size();
+    this.entries.add (entry);
+    this.values.put (key, entry);
+
+    while (this.entries.size() > maxSize) {
+      Entry<K, V> victim = this.sampleVictim ();
+      Entry<K, V> last = this.entries.remove (this.entries.size() - 1);
+
+      if (last != victim) {
+	last.index = victim.index;
+	this.entries.set (victim.index, last);
+      }
+
+      this.values.remove (victim.key);
+    }
+  }
+
+  /**
+   *  Choose the least recently used of a sample of the entries.
+   */
+  private Entry<K, V> sampleVictim() {
+
+    Random random = ThreadLocalRandom.current();
+    int n = this.entries.size();
+    Entry<K, V> victim = null;
+
+    for (int i = 0; i < Math.min (n, SAMPLE_SIZE); i++) {
+      Entry<K, V> e = this.entries.get ((n <= SAMPLE_SIZE) ? i : random.nextInt (n));
+
+      if ((victim == null) || (e.lastUsed < victim.lastUsed))
+	victim = e;
+    }
+
+    return victim;
+  }
+
+  /**
+   *  Get the number of cached values.
+   */
+  public int size() {
+    return this.values.size();
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ *  CollectionStats holds the collection statistics that ranked
+ *  retrieval models (e.g., BM25 and Indri) use to score documents:
+ *  for each indexed field, the number of documents that have the
+ *  field, the total length of the field in the collection, and the
+ *  average length of the field.  The statistics are read from the
+ *  index once, when the index is opened, and shared by every scoring
+ *  call.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+public class CollectionStats {
+
+  /**
+   *  The statistics of one field.
+   */
+  public static class FieldStats {
+
+    public final String field;
+    public final long docCount;		// Documents that have the field
+    public final long sumLength;	// Total length of the field (|C|)
+    public final double avgLength;	// Average length of the field
+
+    private DocLengthStore docLengths;
+    private int fieldIndex;		// The field's number in docLengths
+
+    FieldStats(String field, long docCount, long sumLength,
+	       DocLengthStore docLengths) {
+      this.field = field;
+      this.docCount = docCount;
+      this.sumLength = sumLength;
+      this.avgLength = (docCount > 0) ? ((double) sumLength / docCount) : 0.0;
+      this.docLengths = docLengths;
+      this.fieldIndex = docLengths.getFieldIndex (field);
+    }
+
+    /**
+     *  Get the length of the field in a document.
+     *  @param docid An internal document id.
+     *  @return The length of the field.
+     *  @throws IOException
+     */
+    public long getDocLength(int docid) throws IOException {
+      return this.docLengths.getDocLength (this.fieldIndex, docid);
+    }
+
+    public String toString() {
+      return (this.field + ":  " + this.docCount + " docs, " +
+	      this.sumLength + " terms, " + this.avgLength + " average length");
+    }
+  }
+
+  private Map<String, FieldStats> fields = new HashMap<String, FieldStats>();
+
+  /**
+   *  Read the collection statistics of every indexed field.
+   *  @param reader The index.
+   *  @param docLengths The document lengths of the index.
+   *  @throws IOException
+   */
+  public CollectionStats(IndexReader reader, DocLengthStore docLengths)
+    throws IOException {
+
+    for (String field : MultiFields.getIndexedFields (reader))
+      this.fields.put (field,
+		       new FieldStats (field,
+				       reader.getDocCount (field),
+				       reader.getSumTotalTermFreq (field),
+				       docLengths));
+  }
+
+  /**
+   *  Get the statistics of a field.  A field that is not in the index
+   *  is a fatal error.
+   *  @param field The name of the field.
+   *  @return The field's statistics.
+   */
+  public FieldStats get(String field) {
+
+    FieldStats stats = this.fields.get (field);
+
+    if (stats == null)
+      QryEval.fatalError ("Error:  The index has no field named " + field);
+
+    return stats;
+  }
+}
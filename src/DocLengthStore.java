@@ -2,9 +2,25 @@
  *  Copyright (c) 2013, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,22 +28,120 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ *
+ * Lengths are read from the index's norms, or, if the store is created
+ * with {@link #open}, from a side file that holds an int array of
+ * lengths for each field.  The file is built from the norms the first
+ * time it is needed, and it is memory-mapped when it is opened, so
+ * lengths can be read without decoding norms.  The file records the
+ * index version and size; if they do not match the index, the file is
+ * rebuilt.
+ *
+ * Fields are numbered, and {@link #getDocLength(int, int)} takes the
+ * field's number, so callers in inner loops can look up the number
+ * once instead of looking up the field name on every call.
  */
 public class DocLengthStore  {
 
-  private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private static final int MAGIC = 0x5145444C;	// "QEDL"
+  private static final int FORMAT_VERSION = 1;
+
+  private String[] fields;
+  private Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+
+  //  One of these is used, depending on how the store was created.
+
+  private NumericDocValues[] values;	// field index -> norms
+  private IntBuffer[] lengths;		// field index -> mapped lengths
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
-    this.reader = reader;
+    List<String> names = new ArrayList<String>();
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      names.add(field);
+    }
+    this.setFields(names);
+    this.values = new NumericDocValues[this.fields.length];
+    for (int i = 0; i < this.fields.length; i++) {
+      this.values[i] = MultiDocValues.getNormValues(reader, this.fields[i]);
     }
   }
 
+  /**
+   * Open the materialized document lengths of an index, building the
+   * length file first if it is missing or out of date.
+   *
+   * @param reader IndexReader object created in {@link QryEval}.
+   * @param file The length file.
+   */
+  public static DocLengthStore open(IndexReader reader, File file) throws IOException {
+    long indexVersion = getIndexVersion(reader);
+    if (!isValid(file, indexVersion, reader.maxDoc())) {
+      build(reader, file, indexVersion);
+    }
+    return new DocLengthStore(file);
+  }
+
+  /**
+   * Map a length file into memory.
+   */
+  private DocLengthStore(File file) throws IOException {
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    int maxDoc;
+    long dataOffset;
+    List<String> names = new ArrayList<String>();
+    try {
+      in.readInt();	// magic, format version and index version were checked
+      in.readInt();
+      in.readLong();
+      maxDoc = in.readInt();
+      dataOffset = in.readLong();
+      int numFields = in.readInt();
+      for (int i = 0; i < numFields; i++) {
+        names.add(in.readUTF());
+      }
+    } finally {
+      in.close();
+    }
+    this.setFields(names);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long sectionLength = 4L * maxDoc;
+      this.lengths = new IntBuffer[this.fields.length];
+      for (int i = 0; i < this.fields.length; i++) {
+        this.lengths[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                      dataOffset + i * sectionLength,
+                                      sectionLength).asIntBuffer();
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void setFields(List<String> names) {
+    this.fields = names.toArray(new String[names.size()]);
+    for (int i = 0; i < this.fields.length; i++) {
+      this.fieldIndexes.put(this.fields[i], i);
+    }
+  }
+
+  /**
+   * Returns the number of a field, for use with
+   * {@link #getDocLength(int, int)}.
+   *
+   * @param fieldname Name of the field.
+   * @return The field's number, or -1 if the field is not indexed.
+   */
+  public int getFieldIndex(String fieldname) {
+    Integer index = this.fieldIndexes.get(fieldname);
+    return (index == null) ? -1 : index;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -36,6 +150,109 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(this.fieldIndexes.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param field The field's number (see {@link #getFieldIndex}).
+   * @param docid The internal docid in the lucene index.
+   */
+  public long getDocLength(int field, int docid) throws IOException {
+    if (this.lengths != null) {
+      return this.lengths[field].get(docid);
+    }
+    return this.values[field].get(docid);
+  }
+
+  /**
+   * Get a number that changes whenever the index changes.
+   */
+  private static long getIndexVersion(IndexReader reader) {
+    if (reader instanceof DirectoryReader) {
+      return ((DirectoryReader) reader).getVersion();
+    }
+    return 0;
+  }
+
+  /**
+   * Check whether a length file exists and matches the index.
+   */
+  private static boolean isValid(File file, long indexVersion, int maxDoc)
+    throws IOException {
+    if (!file.exists()) {
+      return false;
+    }
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      return ((file.length() >= 4 + 4 + 8 + 4) &&
+              (in.readInt() == MAGIC) &&
+              (in.readInt() == FORMAT_VERSION) &&
+              (in.readLong() == indexVersion) &&
+              (in.readInt() == maxDoc));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read the lengths of every document from the norms and write the
+   * length file.  The file is written under a temporary name that is
+   * unique to this builder and then renamed, so a partly written file
+   * is never opened, and processes that build the file at the same
+   * time do not write over each other's files.
+   *
+   * The file is a header (magic number, format version, index version,
+   * number of documents, offset of the lengths, and the field names)
+   * followed by an int array of lengths for each field.
+   */
+  private static void build(IndexReader reader, File file, long indexVersion)
+    throws IOException {
+    DocLengthStore norms = new DocLengthStore(reader);
+    int maxDoc = reader.maxDoc();
+
+    //  The header length depends on the field names, so measure it
+    //  before writing it.
+
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+    DataOutputStream namesOut = new DataOutputStream(names);
+    for (String field : norms.fields) {
+      namesOut.writeUTF(field);
+    }
+    namesOut.close();
+    long dataOffset = 4 + 4 + 8 + 4 + 8 + 4 + names.size();
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+    try {
+      DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(indexVersion);
+        out.writeInt(maxDoc);
+        out.writeLong(dataOffset);
+        out.writeInt(norms.fields.length);
+        names.writeTo(out);
+
+        for (int field = 0; field < norms.fields.length; field++) {
+          NumericDocValues values = norms.values[field];
+          for (int docid = 0; docid < maxDoc; docid++) {
+            long length = (values == null) ? 0 : values.get(docid);
+            out.writeInt((int) Math.min(length, Integer.MAX_VALUE));
+          }
+        }
+      } finally {
+        out.close();
+      }
+
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
   }
 }
@@ -0,0 +1,347 @@
+/**
+ *  ExternalIdTable maps internal document ids to external document
+ *  ids (e.g., clueweb09-enwp00-88-09710) and back, without reading
+ *  stored documents from the index.  It also gives each document the
+ *  ordinal of its external id in lexicographic order, so documents
+ *  can be ordered by external id by comparing ints.
+ *
+ *  The table is built once from the index and saved in a side file
+ *  that is memory-mapped when it is opened.  The file records the
+ *  index version and size; if they do not match the index, the file
+ *  is rebuilt.  If there is nowhere to write the file, the table can
+ *  be built in memory instead, in the same format.
+ *
+ *  The file format is a header (magic number, format version, index
+ *  version, number of documents, length of the id data) followed by
+ *  four sections:  the ordinal of each docid, the docid of each
+ *  ordinal, the offset of each docid's external id in the id data,
+ *  and the UTF-8 id data.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+public class ExternalIdTable {
+
+  private static final int MAGIC = 0x51454944;	// "QEID"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 4;
+
+  private static final String FIELD = "externalId";
+
+  private int numDocs;
+  private IntBuffer ordinals;		// docid -> ordinal
+  private IntBuffer docidsByOrdinal;	// ordinal -> docid
+  private IntBuffer offsets;		// docid -> start of its id in idData
+  private ByteBuffer idData;
+  private Bits liveDocs;
+
+  /**
+   *  Open the external id table for an index, building the table
+   *  file first if it is missing or out of date.
+   *  @param reader The index.
+   *  @param file The table file.
+   *  @return The table.
+   *  @throws IOException
+   */
+  public static ExternalIdTable open(IndexReader reader, File file)
+    throws IOException {
+
+    long indexVersion = getIndexVersion (reader);
+
+    if (! isValid (file, indexVersion, reader.maxDoc()))
+      build (reader, file, indexVersion);
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      return new ExternalIdTable (reader, raf.getChannel(), null);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Build the external id table for an index in memory, for when
+   *  there is no writable location for the table file.
+   *  @param reader The index.
+   *  @return The table.
+   *  @throws IOException
+   */
+  public static ExternalIdTable open(IndexReader reader) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream (bytes);
+
+    write (reader, getIndexVersion (reader), out);
+    out.close();
+
+    return new ExternalIdTable (reader, null, ByteBuffer.wrap (bytes.toByteArray()));
+  }
+
+  /**
+   *  Get the sections of the table from a table file that is mapped
+   *  into memory, or from a buffer that holds the table.
+   */
+  private ExternalIdTable(IndexReader reader, FileChannel channel, ByteBuffer data)
+    throws IOException {
+
+    ByteBuffer header = section (channel, data, 0, HEADER_LENGTH);
+
+    header.position (16);
+    this.numDocs = header.getInt();
+    int idDataLength = header.getInt();
+
+    long position = HEADER_LENGTH;
+    long sectionLength = 4L * this.numDocs;
+
+    this.ordinals = section (channel, data, position, sectionLength).asIntBuffer();
+    position += sectionLength;
+
+    this.docidsByOrdinal = section (channel, data, position, sectionLength).asIntBuffer();
+    position += sectionLength;
+
+    this.offsets = section (channel, data, position, sectionLength + 4).asIntBuffer();
+    position += sectionLength + 4;
+
+    this.idData = section (channel, data, position, idDataLength);
+
+    this.liveDocs = MultiFields.getLiveDocs (reader);
+  }
+
+  private static ByteBuffer section(FileChannel channel, ByteBuffer data,
+				    long position, long length) throws IOException {
+
+    if (channel != null)
+      return channel.map (FileChannel.MapMode.READ_ONLY, position, length);
+
+    ByteBuffer section = data.duplicate();
+    section.position ((int) position);
+    section.limit ((int) (position + length));
+    return section.slice();
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int docid) {
+
+    QryMetrics.externalIdLookup ();
+
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+    byte[] bytes = new byte[length];
+
+    ByteBuffer data = this.idData.duplicate();
+    data.position (start);
+    data.get (bytes);
+
+    try {
+      return new String (bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException (e);
+    }
+  }
+
+  /**
+   *  Get the position of a document's external id when all external
+   *  ids are sorted lexicographically.
+   *  @param docid An internal document id.
+   *  @return The ordinal of the document's external id.
+   */
+  public int getOrdinal(int docid) {
+    return this.ordinals.get (docid);
+  }
+
+  /**
+   *  Find the internal document id for an external id.
+   *  @param externalId An external document id.
+   *  @return The internal document id, or -1 if there is no such
+   *    document.
+   */
+  public int getInternalDocid(String externalId) {
+
+    int low = 0;
+    int high = this.numDocs - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int docid = this.docidsByOrdinal.get (mid);
+      int cmp = this.getExternalDocid (docid).compareTo (externalId);
+
+      if (cmp < 0)
+	low = mid + 1;
+      else if (cmp > 0)
+	high = mid - 1;
+      else {
+
+	//  Deleted documents can share an external id with a live
+	//  document, so look at the neighbors too.
+
+	for (int i = mid; (i >= 0) &&
+	       this.getExternalDocid (this.docidsByOrdinal.get (i)).equals (externalId); i--)
+	  if (this.isLive (this.docidsByOrdinal.get (i)))
+	    return this.docidsByOrdinal.get (i);
+
+	for (int i = mid + 1; (i < this.numDocs) &&
+	       this.getExternalDocid (this.docidsByOrdinal.get (i)).equals (externalId); i++)
+	  if (this.isLive (this.docidsByOrdinal.get (i)))
+	    return this.docidsByOrdinal.get (i);
+
+	return -1;
+      }
+    }
+
+    return -1;
+  }
+
+  private boolean isLive(int docid) {
+    return (this.liveDocs == null) || this.liveDocs.get (docid);
+  }
+
+  /**
+   *  Get a number that changes whenever the index changes.
+   */
+  private static long getIndexVersion(IndexReader reader) {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getVersion();
+    return 0;
+  }
+
+  /**
+   *  Check whether a table file exists and matches the index.
+   */
+  private static boolean isValid(File file, long indexVersion, int maxDoc)
+    throws IOException {
+
+    if (! file.exists() || (file.length() < HEADER_LENGTH))
+      return false;
+
+    DataInputStream in =
+      new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+
+    try {
+      return ((in.readInt() == MAGIC) &&
+	      (in.readInt() == FORMAT_VERSION) &&
+	      (in.readLong() == indexVersion) &&
+	      (in.readInt() == maxDoc));
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   *  Write the table file.  The file is written under a temporary name
+   *  that is unique to this builder and then renamed, so a partly
+   *  written file is never opened, and processes that build the table
+   *  at the same time do not write over each other's files.
+   */
+  private static void build(IndexReader reader, File file, long indexVersion)
+    throws IOException {
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile (file.getName() + ".", ".tmp", dir);
+
+    try {
+      DataOutputStream out =
+	new DataOutputStream (new BufferedOutputStream (new FileOutputStream (tmp)));
+
+      try {
+	write (reader, indexVersion, out);
+      } finally {
+	out.close();
+      }
+
+      Files.move (tmp.toPath(), file.toPath(),
+		  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   *  Read every document's external id from the index and write the
+   *  table.
+   */
+  private static void write(IndexReader reader, long indexVersion, DataOutputStream out)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    String[] ids = new String[maxDoc];
+    Set<String> fields = Collections.singleton (FIELD);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, fields);
+      QryMetrics.storedFieldRead ();
+      String eid = d.get (FIELD);
+      ids[docid] = (eid == null) ? "" : eid;
+    }
+
+    //  Sort the docids by external id to assign the ordinals.
+
+    final String[] sortIds = ids;
+    Integer[] byOrdinal = new Integer[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      byOrdinal[docid] = docid;
+
+    Arrays.sort (byOrdinal, new Comparator<Integer>() {
+	public int compare(Integer d1, Integer d2) {
+	  return sortIds[d1].compareTo (sortIds[d2]);
+	}
+      });
+
+    int[] ordinals = new int[maxDoc];
+
+    for (int ordinal = 0; ordinal < maxDoc; ordinal++)
+      ordinals[byOrdinal[ordinal]] = ordinal;
+
+    byte[][] idBytes = new byte[maxDoc][];
+    long idDataLength = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      idBytes[docid] = ids[docid].getBytes ("UTF-8");
+      idDataLength += idBytes[docid].length;
+    }
+
+    if (idDataLength > Integer.MAX_VALUE)
+      throw new IOException ("Error:  Too much external id data to map: " +
+			     idDataLength + " bytes");
+
+    out.writeInt (MAGIC);
+    out.writeInt (FORMAT_VERSION);
+    out.writeLong (indexVersion);
+    out.writeInt (maxDoc);
+    out.writeInt ((int) idDataLength);
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.writeInt (ordinals[docid]);
+
+    for (int ordinal = 0; ordinal < maxDoc; ordinal++)
+      out.writeInt (byOrdinal[ordinal]);
+
+    int offset = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      out.writeInt (offset);
+      offset += idBytes[docid].length;
+    }
+
+    out.writeInt (offset);
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      out.write (idBytes[docid]);
+  }
+}
@@ -4,6 +4,12 @@
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
  *
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per document.  The positions of every posting are
+ *  flattened into a single positions array; the positions of the
+ *  n'th posting start at positionOffsets[n] and there are tfs[n] of
+ *  them.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
@@ -16,40 +22,27 @@ import org.apache.lucene.search.*;
 
 public class InvList {
 
-  //  Utility class that makes it easier to construct postings.
-
-  public class DocPosting {
-
-    public int docid = 0;
-    public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
-
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
-
   //  Class variables.
 
   public int ctf = 0;
   public int df = 0;
   public String field;
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+
+  int[] docids;
+  int[] tfs;
+  int[] positionOffsets;
+  int[] positions;
+
+  //  True if the arrays may also be used by another inverted list.
+  //  They are copied before this inverted list modifies them.
+
+  private boolean shared = false;
 
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (0, 0);
   }
 
   /**
@@ -57,6 +50,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (0, 0);
   }
 
   /**
@@ -76,8 +70,18 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (QryEval.READER.docFreq(term) < 1)
+    int termDf = QryEval.READER.docFreq(term);
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics give the exact size of the list (unless
+    //  documents were deleted), so the arrays are allocated once.
+
+    long termCtf = QryEval.READER.totalTermFreq(term);
+    this.allocate (termDf, (termCtf > 0) ? (int) termCtf : termDf);
 
     //  Lookup the inverted list.
 
@@ -94,48 +98,176 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.positionOffsets[this.df] = this.ctf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
     }
+
+    QryMetrics.invListRead (this.df, this.ctf);
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param numDocs The initial posting capacity.
+   *  @param numPositions The initial position capacity.
+   */
+  private void allocate (int numDocs, int numPositions) {
+    this.docids = new int[numDocs];
+    this.tfs = new int[numDocs];
+    this.positionOffsets = new int[numDocs];
+    this.positions = new int[numPositions];
+  }
+
+  /**
+   *  Grow the posting arrays so that they can hold at least the
+   *  specified number of postings and positions.
+   *  @param numDocs The required posting capacity.
+   *  @param numPositions The required position capacity.
+   */
+  private void ensureCapacity (int numDocs, int numPositions) {
+
+    if (this.shared) {
+      this.docids = this.docids.clone();
+      this.tfs = this.tfs.clone();
+      this.positionOffsets = this.positionOffsets.clone();
+      this.positions = this.positions.clone();
+      this.shared = false;
+    }
+
+    if (numDocs > this.docids.length) {
+      int size = Math.max (numDocs, this.docids.length * 2 + 8);
+      this.docids = Arrays.copyOf (this.docids, size);
+      this.tfs = Arrays.copyOf (this.tfs, size);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, size);
+    }
+
+    if (numPositions > this.positions.length) {
+      int size = Math.max (numPositions, this.positions.length * 2 + 8);
+      this.positions = Arrays.copyOf (this.positions, size);
+    }
+  }
+
+  /**
+   *  Create an inverted list that has the same postings as this one
+   *  without copying them.  Neither list can see changes made to the
+   *  other, because the postings are copied before they are modified.
+   *  This allows one inverted list to be shared, e.g., by a cache.
+   *  @return The new inverted list.
+   */
+  public InvList share() {
+
+    InvList copy = new InvList ();
+    copy.ctf = this.ctf;
+    copy.df = this.df;
+    copy.field = this.field;
+    copy.docids = this.docids;
+    copy.tfs = this.tfs;
+    copy.positionOffsets = this.positionOffsets;
+    copy.positions = this.positions;
+    copy.shared = true;
+    this.shared = true;
+
+    return copy;
   }
 
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
-   *  @param n The posting internal document id.
-   *  @param positions A list of positions where the term occurs.
+   *  @param docid The posting internal document id.
+   *  @param locations An array that contains the positions where the term occurs.
+   *  @param from The index of the first position in locations.
+   *  @param tf The number of positions to copy from locations.
    *  @result true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
+  public boolean appendPosting (int docid, int[] locations, int from, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.ctf;
+    System.arraycopy (locations, from, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
     return true;
   }
 
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param locations The positions where the term occurs.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int... locations) {
+    return this.appendPosting (docid, locations, 0, locations.length);
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param n The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.postings.get(n).docid;
+    return this.docids[n];
+  }
+
+  /**
+   *  Find the index of the first document at or after index n whose
+   *  id is at least target, by galloping, as in ScoreList.gallop:
+   *  probe entries n+1, n+2, n+4, ... until one is past the target,
+   *  then binary search the last interval.  This is O(log d) for a
+   *  jump of d entries.
+   *  @param n The index to start from.
+   *  @param target The smallest acceptable document id.
+   *  @return The index of the entry, or df if there is none.
+   */
+  public int gallop(int n, int target) {
+
+    if ((n >= this.df) || (this.docids[n] >= target))
+      return n;
+
+    //  docids[low] < target.  Find high such that docids[high] >= target.
+
+    int low = n;
+    int step = 1;
+
+    while ((low + step < this.df) && (this.docids[low + step] < target)) {
+      low += step;
+      step <<= 1;
+    }
+
+    int high = Math.min (low + step, this.df);
+
+    //  Binary search for the first entry in (low, high] that is >= target.
+
+    low ++;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+
+      if (this.docids[mid] < target)
+	low = mid + 1;
+      else
+	high = mid;
+    }
+
+    return low;
   }
 
   /**
@@ -144,7 +276,56 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the index in the positions array of the first position of
+   *  the n'th document.  The document's positions are stored in
+   *  getPositions()[getPositionsOffset(n)] through
+   *  getPositions()[getPositionsOffset(n) + getTf(n) - 1].
+   *  @param n The index of the requested document.
+   *  @return The offset of the document's first position.
+   */
+  public int getPositionsOffset(int n) {
+    return this.positionOffsets[n];
+  }
+
+  /**
+   *  Get the flattened positions array.  The array is shared with
+   *  the inverted list, so callers must not modify it.
+   *  @return The positions of every posting in the inverted list.
+   */
+  public int[] getPositions() {
+    return this.positions;
+  }
+
+  /**
+   *  Get the j'th position in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested position within the document.
+   *  @return The position.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Estimate the amount of memory used by the inverted list.
+   *  @return The estimated size of the inverted list in bytes.
+   */
+  public long estimatedBytes() {
+    return (64 +
+	    4L * (3L * this.docids.length + this.positions.length) +
+	    ((this.field == null) ? 0 : 2L * this.field.length()));
+  }
+
+  /**
+   *  Create a document-at-a-time cursor over the inverted list.
+   *  @return The cursor.
+   */
+  public InvListCursor cursor() {
+    return new InvListCursor.ListCursor (this);
   }
 
   /**
@@ -155,11 +336,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,429 @@
+/**
+ *  InvListCache holds the inverted lists of recently used terms so
+ *  that a term that occurs in many queries is read from the index
+ *  once.  It is shared by all query evaluation threads.  It can also
+ *  hold the inverted lists produced by query operators, keyed by a
+ *  canonical form of the query operator.
+ *
+ *  The cache is bounded by the estimated size of the inverted lists
+ *  that it holds.  It uses a frequency-aware policy: a small sketch
+ *  counts how often each (term, field) pair has been requested
+ *  recently, and a new list is admitted only if its term is requested
+ *  more often than the least recently used lists that it would evict.
+ *  This keeps a burst of rare terms from flushing the popular ones.
+ *  The counts are halved periodically so that old popularity fades.
+ *
+ *  Lookups do not lock.  The lists are in a ConcurrentHashMap, the
+ *  statistics are LongAdders, and the sketch is updated without
+ *  synchronization (a lost update only makes an estimate a little
+ *  low).  Recency is sampled:  each list remembers roughly when it
+ *  was last used, and the least recently used of a few randomly
+ *  chosen lists is the next candidate for eviction, as in Redis.
+ *  Only put locks, so that lists are admitted and evicted one at a
+ *  time.  load reads a list that is not cached; if several threads
+ *  miss on the same key at once, one of them reads it and the others
+ *  wait for it.
+ *
+ *  Cached inverted lists are shared.  Callers should give the cache,
+ *  and take from it, lists made by InvList.share, which copy their
+ *  postings before they are modified.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class InvListCache {
+
+  //  The frequency sketch has DEPTH rows of counters.  Counters are
+  //  capped at MAX_COUNT.
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+  //  The number of lists that are sampled to choose an eviction
+  //  candidate, and how stale (in nanoseconds) a list's last use time
+  //  may be before a lookup updates it.
+
+  private static final int SAMPLE_SIZE = 8;
+  private static final long RECENCY_GRANULARITY = 1000000;
+
+  /**
+   *  Reads an inverted list that is not cached.
+   */
+  public interface Loader {
+    InvList load() throws IOException;
+  }
+
+  /**
+   *  A cached inverted list.
+   */
+  private static class Entry {
+    final String key;
+    final InvList list;
+    final long bytes;
+    volatile long lastUsed;
+    int index;			// The entry's position in entries
+
+    Entry(String key, InvList list, long bytes) {
+      this.key = key;
+      this.list = list;
+      this.bytes = bytes;
+      this.lastUsed = System.nanoTime();
+    }
+  }
+
+  private String name;
+  private long maxBytes;
+  private volatile long bytes = 0;
+
+  private ConcurrentHashMap<String, Entry> lists =
+    new ConcurrentHashMap<String, Entry>();
+
+  //  The entries in no particular order, so that they can be sampled.
+  //  Changed only by put.
+
+  private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+  //  Lists that are being read by load.
+
+  private ConcurrentHashMap<String, FutureTask<InvList>> loading =
+    new ConcurrentHashMap<String, FutureTask<InvList>>();
+
+  private int[][] sketch;
+  private int sketchMask;
+  private int additions = 0;
+  private int resetInterval;
+
+  private LongAdder hits = new LongAdder();
+  private LongAdder misses = new LongAdder();
+  private LongAdder evictions = new LongAdder();
+  private LongAdder rejections = new LongAdder();
+
+  /**
+   *  Constructor.
+   *  @param name The name of the cache, which is used in reports.
+   *  @param maxBytes The maximum estimated size of the cached lists.
+   */
+  public InvListCache(String name, long maxBytes) {
+    this.name = name;
+    this.maxBytes = maxBytes;
+
+    int width = 1 << 16;
+    this.sketch = new int[DEPTH][width];
+    this.sketchMask = width - 1;
+    this.resetInterval = 10 * width;
+  }
+
+  /**
+   *  Get a cached inverted list.  The request is counted whether or
+   *  not the list is cached.
+   *  @param term The processed term string.
+   *  @param field The field that the term occurs in.
+   *  @return The inverted list, or null if it is not cached.
+   */
+  public InvList get(String term, String field) {
+    return this.get (getKey (term, field));
+  }
+
+  /**
+   *  Get a cached inverted list.  The request is counted whether or
+   *  not the list is cached.
+   *  @param key The key of the inverted list.
+   *  @return The inverted list, or null if it is not cached.
+   */
+  public InvList get(String key) {
+
+    this.increment (key);
+
+    Entry entry = this.lists.get (key);
+
+    if (entry == null) {
+      this.misses.increment();
+      return null;
+    }
+
+    this.hits.increment();
+
+    long now = System.nanoTime();
+
+    if (now - entry.lastUsed > RECENCY_GRANULARITY)
+      entry.lastUsed = now;
+
+    return entry.list;
+  }
+
+  /**
+   *  Read an inverted list that get did not find, and offer it to the
+   *  cache.  If another thread is already reading the list, wait for
+   *  it instead of reading the list again.  The request is not counted
+   *  again.
+   *  @param term The processed term string.
+   *  @param field The field that the term occurs in.
+   *  @param loader Reads the inverted list.
+   *  @return The inverted list.
+   *  @throws IOException
+   */
+  public InvList load(String term, String field, Loader loader) throws IOException {
+    return this.load (getKey (term, field), loader);
+  }
+
+  /**
+   *  Read an inverted list that get did not find, and offer it to the
+   *  cache.  If another thread is already reading the list, wait for
+   *  it instead of reading the list again.  The request is not counted
+   *  again.
+   *  @param key The key of the inverted list.
+   *  @param loader Reads the inverted list.
+   *  @return The inverted list.
+   *  @throws IOException
+   */
+  public InvList load(final String key, final Loader loader) throws IOException {
+
+    FutureTask<InvList> task = new FutureTask<InvList>(new Callable<InvList>() {
+	public InvList call() throws IOException {
+
+	  //  The list may have been cached after the caller missed it.
+
+	  Entry entry = lists.get (key);
+
+	  if (entry != null)
+	    return entry.list;
+
+	  InvList list = loader.load();
+	  put (key, list);
+	  return list;
+	}
+      });
+
+    FutureTask<InvList> running = this.loading.putIfAbsent (key, task);
+
+    if (running == null) {
+      running = task;
+
+      try {
+	task.run();
+      } finally {
+	this.loading.remove (key, task);
+      }
+    }
+
+    return getResult (running);
+  }
+
+  /**
+   *  Get the result of a load, passing on the exception if it failed.
+   */
+  private static InvList getResult(FutureTask<InvList> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException ("Interrupted while waiting for an inverted list");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+	throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+	throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)
+	throw (Error) e.getCause();
+      throw new IOException (e.getCause());
+    }
+  }
+
+  /**
+   *  Check whether a term has been requested more than once recently.
+   *  Inverted lists of terms that are not recurring are unlikely to
+   *  be admitted, so there is no need to materialize them.
+   *  @param term The processed term string.
+   *  @param field The field that the term occurs in.
+   *  @return true if the term is recurring, otherwise false.
+   */
+  public boolean isRecurring(String term, String field) {
+    return (this.frequency (getKey (term, field)) > 1);
+  }
+
+  /**
+   *  Offer an inverted list to the cache.  The list is admitted if it
+   *  fits, or if its term is requested more often than the lists
+   *  that must be evicted to make room for it.
+   *  @param term The processed term string.
+   *  @param field The field that the term occurs in.
+   *  @param list The term's inverted list.
+   *  @return true if the list was cached, otherwise false.
+   */
+  public boolean put(String term, String field, InvList list) {
+    return this.put (getKey (term, field), list);
+  }
+
+  /**
+   *  Offer an inverted list to the cache.  The list is admitted if it
+   *  fits, or if its key is requested more often than the lists
+   *  that must be evicted to make room for it.
+   *  @param key The key of the inverted list.
+   *  @param list The inverted list.
+   *  @return true if the list was cached, otherwise false.
+   */
+  public synchronized boolean put(String key, InvList list) {
+
+    if (this.lists.containsKey (key))
+      return true;
+
+    long listBytes = list.estimatedBytes();
+
+    if (listBytes > this.maxBytes) {
+      this.rejections.increment();
+      return false;
+    }
+
+    //  Find the victims without evicting them, so that nothing is
+    //  lost if the list is rejected.  Each victim is moved behind the
+    //  entries that can still be sampled.
+
+    int candidateFrequency = this.frequency (key);
+    long freeBytes = this.maxBytes - this.bytes;
+    int numVictims = 0;
+
+    while (freeBytes < listBytes) {
+      Entry victim = this.sampleVictim (this.entries.size() - numVictims);
+
+      if (this.frequency (victim.key) >= candidateFrequency) {
+	this.rejections.increment();
+	return false;
+      }
+
+      this.swap (victim.index, this.entries.size() - 1 - numVictims);
+      numVictims ++;
+      freeBytes += victim.bytes;
+    }
+
+    for (; numVictims > 0; numVictims --) {
+      Entry victim = this.entries.remove (this.entries.size() - 1);
+      this.lists.remove (victim.key);
+      this.bytes -= victim.bytes;
+      this.evictions.increment();
+    }
+
+    Entry entry = new Entry (key, list, listBytes);
+    entry.index = this.entries.size();
+    this.entries.add (entry);
+    this.lists.put (key, entry);
+    this.bytes += listBytes;
+    return true;
+  }
+
+  /**
+   *  Choose the least recently used of a sample of the first n
+   *  entries.
+   */
+  private Entry sampleVictim(int n) {
+
+    Random random = ThreadLocalRandom.current();
+    Entry victim = null;
+
+    for (int i = 0; i < Math.min (n, SAMPLE_SIZE); i++) {
+      Entry e = this.entries.get ((n <= SAMPLE_SIZE) ? i : random.nextInt (n));
+
+      if ((victim == null) || (e.lastUsed < victim.lastUsed))
+	victim = e;
+    }
+
+    return victim;
+  }
+
+  private void swap(int i, int j) {
+    Entry ei = this.entries.get (i);
+    Entry ej = this.entries.get (j);
+
+    this.entries.set (i, ej);
+    this.entries.set (j, ei);
+    ej.index = i;
+    ei.index = j;
+  }
+
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  public long getRejections() {
+    return this.rejections.sum();
+  }
+
+  public long getBytes() {
+    return this.bytes;
+  }
+
+  public int size() {
+    return this.lists.size();
+  }
+
+  /**
+   *  Return a summary of the cache statistics.
+   */
+  public String toString() {
+    return (this.name + " cache:  " + this.lists.size() + " lists, " +
+	    (this.bytes / (1024L * 1024L)) + " MB, " +
+	    this.getHits() + " hits, " + this.getMisses() + " misses, " +
+	    this.getEvictions() + " evictions, " + this.getRejections() + " rejections");
+  }
+
+  private static String getKey(String term, String field) {
+    return (field + ":" + term);
+  }
+
+  /**
+   *  Count a request for a key in the frequency sketch.
+   */
+  private void increment(String key) {
+    int h = key.hashCode();
+
+    for (int i = 0; i < DEPTH; i++) {
+      int j = this.index (h, i);
+
+      if (this.sketch[i][j] < MAX_COUNT)
+	this.sketch[i][j] ++;
+    }
+
+    //  Halve all of the counts periodically, so that the sketch
+    //  reflects recent requests.
+
+    if (++ this.additions >= this.resetInterval) {
+      this.additions /= 2;
+
+      for (int i = 0; i < DEPTH; i++)
+	for (int j = 0; j < this.sketch[i].length; j++)
+	  this.sketch[i][j] >>= 1;
+    }
+  }
+
+  /**
+   *  Estimate how often a key was requested recently.
+   */
+  private int frequency(String key) {
+    int h = key.hashCode();
+    int count = MAX_COUNT;
+
+    for (int i = 0; i < DEPTH; i++)
+      count = Math.min (count, this.sketch[i][this.index (h, i)]);
+
+    return count;
+  }
+
+  private int index(int h, int i) {
+    h *= SEEDS[i];
+    h ^= (h >>> 16);
+    return (h & this.sketchMask);
+  }
+}
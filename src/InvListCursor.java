@@ -0,0 +1,248 @@
+/**
+ *  An InvListCursor provides document-at-a-time access to an inverted
+ *  list without requiring the whole list to be in memory.  A cursor
+ *  starts before its first document; nextDoc and advance move it
+ *  forward, and freq and positions describe the current document.
+ *
+ *  Cursors are created over materialized inverted lists (see
+ *  InvList.cursor) or directly over a Lucene posting list (see
+ *  forTerm).  Lucene cursors decode a document's positions only when
+ *  they are requested, and advance uses Lucene's skip data, so
+ *  operators that skip documents avoid decoding them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+public abstract class InvListCursor {
+
+  public static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+  //  The field that the inverted list belongs to.
+
+  public String field;
+
+  /**
+   *  Get the current document id.  This is -1 before the first call
+   *  to nextDoc or advance, and NO_MORE_DOCS when the list is exhausted.
+   *  @return The current internal document id.
+   */
+  public abstract int docID();
+
+  /**
+   *  Move to the next document.
+   *  @return The new document id, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int nextDoc() throws IOException;
+
+  /**
+   *  Move to the first document whose id is at least target.  The
+   *  target must be greater than the current document id.
+   *  @param target The smallest acceptable document id.
+   *  @return The new document id, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int advance(int target) throws IOException;
+
+  /**
+   *  Get the term frequency in the current document.
+   *  @return The current document's term frequency.
+   *  @throws IOException
+   */
+  public abstract int freq() throws IOException;
+
+  /**
+   *  Get the positions in the current document.  The positions are
+   *  stored in positions()[positionsOffset()] through
+   *  positions()[positionsOffset() + freq() - 1].  The array may be
+   *  reused by the cursor, so callers must not modify it or keep it
+   *  after moving the cursor.
+   *  @return An array that contains the current document's positions.
+   *  @throws IOException
+   */
+  public abstract int[] positions() throws IOException;
+
+  /**
+   *  Get the index of the current document's first position in the
+   *  array returned by positions().
+   *  @return The offset of the first position.
+   */
+  public abstract int positionsOffset();
+
+  /**
+   *  Get the number of documents in the inverted list.  This is used
+   *  to order query arguments, so it may be an estimate.
+   *  @return The document frequency (df) of the list.
+   */
+  public abstract int df();
+
+  /**
+   *  Get the total number of occurrences in the inverted list.
+   *  @return The collection term frequency (ctf) of the list.
+   *  @throws IOException
+   */
+  public abstract long ctf() throws IOException;
+
+  /**
+   *  Create a cursor that streams a term's inverted list directly from
+   *  the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The cursor.
+   *  @throws IOException
+   */
+  public static InvListCursor forTerm(String termString, String fieldString)
+    throws IOException {
+
+    BytesRef termBytes = new BytesRef(termString);
+    Term term = new Term(fieldString, termBytes);
+    int df = QryEval.READER.docFreq(term);
+    DocsAndPositionsEnum iList = null;
+
+    if (df > 0)
+      iList = MultiFields.getTermPositionsEnum(QryEval.READER,
+					       MultiFields.getLiveDocs(QryEval.READER),
+					       fieldString, termBytes);
+
+    if (iList == null)
+      return (new ListCursor (new InvList (fieldString)));
+
+    return (new IndexCursor (term, df, iList));
+  }
+
+  /**
+   *  A cursor over a materialized inverted list.
+   */
+  public static class ListCursor extends InvListCursor {
+
+    private InvList list;
+    private int n = -1;
+
+    public ListCursor(InvList list) {
+      this.list = list;
+      this.field = list.field;
+    }
+
+    public int docID() {
+      if (this.n < 0)
+	return -1;
+      return (this.n < this.list.df) ? this.list.getDocid(this.n) : NO_MORE_DOCS;
+    }
+
+    public int nextDoc() {
+      if (this.n < this.list.df)
+	this.n ++;
+      return this.docID();
+    }
+
+    public int advance(int target) {
+      this.n = this.list.gallop (Math.min (this.n + 1, this.list.df), target);
+      return this.docID();
+    }
+
+    public int freq() {
+      return this.list.getTf(this.n);
+    }
+
+    public int[] positions() {
+      return this.list.getPositions();
+    }
+
+    public int positionsOffset() {
+      return this.list.getPositionsOffset(this.n);
+    }
+
+    public int df() {
+      return this.list.df;
+    }
+
+    public long ctf() {
+      return this.list.ctf;
+    }
+  }
+
+  /**
+   *  A cursor over a Lucene posting list.  Positions are decoded into
+   *  a reusable buffer the first time they are requested for a document.
+   */
+  public static class IndexCursor extends InvListCursor {
+
+    private Term term;
+    private int df;
+    private long ctf = -1;
+    private DocsAndPositionsEnum iList;
+    private int[] positions = new int[16];
+    private int positionsDoc = -1;	// The document decoded into positions.
+
+    private IndexCursor(Term term, int df, DocsAndPositionsEnum iList) {
+      this.term = term;
+      this.field = term.field();
+      this.df = df;
+      this.iList = iList;
+    }
+
+    public int docID() {
+      return this.iList.docID();
+    }
+
+    public int nextDoc() throws IOException {
+      return this.count(this.iList.nextDoc());
+    }
+
+    public int advance(int target) throws IOException {
+      return this.count(this.iList.advance(target));
+    }
+
+    private int count(int doc) {
+      if (doc != NO_MORE_DOCS)
+	QryMetrics.postingsDecoded(1, 0);
+      return doc;
+    }
+
+    public int freq() throws IOException {
+      return this.iList.freq();
+    }
+
+    public int[] positions() throws IOException {
+
+      //  Lucene positions can be read only once per document.
+
+      int doc = this.iList.docID();
+
+      if (doc != this.positionsDoc) {
+	int tf = this.iList.freq();
+
+	if (tf > this.positions.length)
+	  this.positions = new int[Math.max(tf, 2 * this.positions.length)];
+
+	for (int j = 0; j < tf; j++)
+	  this.positions[j] = this.iList.nextPosition();
+
+	this.positionsDoc = doc;
+	QryMetrics.postingsDecoded(0, tf);
+      }
+
+      return this.positions;
+    }
+
+    public int positionsOffset() {
+      return 0;
+    }
+
+    public int df() {
+      return this.df;
+    }
+
+    public long ctf() throws IOException {
+      if (this.ctf < 0)
+	this.ctf = QryEval.READER.totalTermFreq(this.term);
+      return this.ctf;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ *  LatencyHistogram records latencies in nanoseconds with a relative
+ *  precision of 1/128 (under 1%) from 1 nanosecond to hundreds of
+ *  years.  Values below 128 have their own buckets; larger values are
+ *  bucketed by their power of two, and each power of two is divided
+ *  into 128 equal sub-buckets, which is the layout HdrHistogram uses.
+ *  Recording is lock-free, so query evaluation threads can share one
+ *  histogram.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts =
+    new AtomicLongArray ((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong ();
+  private final AtomicLong total = new AtomicLong ();
+  private final AtomicLong max = new AtomicLong ();
+
+  /**
+   *  Record a latency.
+   *  @param nanos The latency in nanoseconds.  Negative values are
+   *    recorded as 0.
+   */
+  public void record(long nanos) {
+
+    nanos = Math.max (0, nanos);
+
+    this.counts.incrementAndGet (bucket (nanos));
+    this.count.incrementAndGet ();
+    this.total.addAndGet (nanos);
+
+    for (long m = this.max.get (); (nanos > m) && ! this.max.compareAndSet (m, nanos); )
+      m = this.max.get ();
+  }
+
+  public long getCount() {
+    return this.count.get ();
+  }
+
+  public long getMax() {
+    return this.max.get ();
+  }
+
+  public double getMean() {
+    long n = this.count.get ();
+    return (n == 0) ? 0.0 : (double) this.total.get () / n;
+  }
+
+  /**
+   *  Get the latency at a percentile.  The value returned is the
+   *  largest value in the bucket of the percentile (but not more than
+   *  the maximum recorded value), so it overstates the latency by less
+   *  than 1%.
+   *  @param percentile A percentile from 0 to 100.
+   *  @return The latency in nanoseconds, or 0 if nothing is recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+
+    long n = this.count.get ();
+
+    if (n == 0)
+      return 0;
+
+    long rank = Math.max (1, (long) Math.ceil (percentile / 100.0 * n));
+    long seen = 0;
+
+    for (int i = 0; i < this.counts.length (); i++) {
+      seen += this.counts.get (i);
+
+      if (seen >= rank)
+	return Math.min (highestValue (i), this.max.get ());
+    }
+
+    return this.max.get ();
+  }
+
+  /**
+   *  Get the bucket of a value.
+   */
+  private static int bucket(long value) {
+
+    if (value < SUB_BUCKETS)
+      return (int) value;
+
+    int exponent = 63 - Long.numberOfLeadingZeros (value);	// >= SUB_BUCKET_BITS
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   *  Get the largest value that falls in a bucket.
+   */
+  private static long highestValue(int bucket) {
+
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -11,11 +11,10 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
@@ -34,9 +33,11 @@ public class QryEval {
 	public static IndexReader READER;
 
 	//  Create and configure an English analyzer that will be used for
-	//  query parsing.
+	//  query parsing.  It is configured once, here.  The analyzer keeps
+	//  one set of token stream components per thread and reuses them,
+	//  so it can be shared by query evaluation threads.
 
-	public static EnglishAnalyzerConfigurable analyzer =
+	public static final EnglishAnalyzerConfigurable analyzer =
 			new EnglishAnalyzerConfigurable (Version.LUCENE_43);
 	static {
 		analyzer.setLowercase(true);
@@ -44,6 +45,41 @@ public class QryEval {
 		analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 	}
 
+	//  If true, query trees are rewritten by QryOptimizer before they
+	//  are evaluated.
+
+	static boolean optimizeQueries = true;
+
+	//  The external id table is opened the first time that an
+	//  external id is needed.
+
+	static File externalIdTableFile;		// null if the table is held in memory
+	private static ExternalIdTable externalIdTable;
+
+	//  The number of documents written to the trec_eval output for
+	//  each query.
+
+	static int trecEvalOutputLength = 100;
+
+	//  tokenizeQuery remembers the stems of recently used raw tokens,
+	//  up to tokenCacheSize tokens.  0 disables the cache.  Cached
+	//  stems are found without locking (see BoundedCache).
+
+	static int tokenCacheSize = 10000;
+
+	private static final BoundedCache<String, String[]> tokenCache =
+			new BoundedCache<String, String[]>();
+
+	//  If pseudo-relevance feedback is enabled, each query is expanded
+	//  with terms from its top documents and evaluated again.
+
+	static QryExpander expander = null;
+
+	//  If true, each query tree is profiled (see QryProfiler) and the
+	//  profile is printed with the query's results.
+
+	static boolean profileQueries = false;
+
 	/**
 	 *  @param args The only argument is the path to the parameter file.
 	 *  @throws Exception
@@ -96,13 +132,145 @@ public class QryEval {
 			System.exit(1);
 		}
 
-		DocLengthStore s = new DocLengthStore(READER);
+		if (params.containsKey("externalIdTablePath")) {
+			externalIdTableFile = new File(params.get("externalIdTablePath"));
+		} else {
+			externalIdTableFile = getSideFile(params.get("indexPath"), "externalIds.qryeval");
+		}
+
+		if (params.containsKey("profileQueries")) {
+			profileQueries = Boolean.parseBoolean(params.get("profileQueries"));
+		}
+
+		if (params.containsKey("optimizeQueries")) {
+			optimizeQueries = Boolean.parseBoolean(params.get("optimizeQueries"));
+		}
+
+		if (params.containsKey("optimizerDebug")) {
+			QryOptimizer.debug = Boolean.parseBoolean(params.get("optimizerDebug"));
+		}
+
+		if (params.containsKey("trecEvalOutputLength")) {
+			trecEvalOutputLength = Integer.parseInt(params.get("trecEvalOutputLength"));
+		}
+
+		// Term inverted lists are streamed from the index unless the
+		// parameter file asks for them to be materialized first.
+
+		if (params.containsKey("streamPostings")) {
+			QryopIlTerm.streamPostings = Boolean.parseBoolean(params.get("streamPostings"));
+		}
+
+		// Inverted lists are cached across queries if the parameter
+		// file asks for it.  The cache size is in megabytes.
+
+		if (params.containsKey("invListCache") && Boolean.parseBoolean(params.get("invListCache"))) {
+			long cacheSize = 256;
+			if (params.containsKey("invListCacheSize")) {
+				cacheSize = Long.parseLong(params.get("invListCacheSize"));
+			}
+			QryopIlTerm.cache = new InvListCache("InvList", cacheSize * 1024L * 1024L);
+		}
+
+		// Results of #NEAR/n and #SYN operators are cached across queries
+		// if the parameter file asks for it.  The cache size is in megabytes.
+
+		if (params.containsKey("resultCache") && Boolean.parseBoolean(params.get("resultCache"))) {
+			long cacheSize = 64;
+			if (params.containsKey("resultCacheSize")) {
+				cacheSize = Long.parseLong(params.get("resultCacheSize"));
+			}
+			QryopIl.resultCache = new InvListCache("Result", cacheSize * 1024L * 1024L);
+		}
+
+		// TermVectors and the df and ctf of their stems are cached.  The
+		// cache sizes are numbers of entries; 0 disables a cache.
+
+		if (params.containsKey("termVectorCacheSize")) {
+			TermVector.cacheSize = Integer.parseInt(params.get("termVectorCacheSize"));
+		}
+
+		if (params.containsKey("termStatsCacheSize")) {
+			TermVector.statsCacheSize = Integer.parseInt(params.get("termStatsCacheSize"));
+		}
+
+		if (params.containsKey("tokenCacheSize")) {
+			tokenCacheSize = Integer.parseInt(params.get("tokenCacheSize"));
+		}
+
+		// Query latency, operator, index and cache metrics are published
+		// as JMX MBeans (see QryMetrics) if the parameter file asks for it.
+
+		if (params.containsKey("jmx") && Boolean.parseBoolean(params.get("jmx"))) {
+			QryMetrics.start();
+		}
+
+		// Document lengths are materialized in a memory-mapped file
+		// unless the parameter file asks for them to be read from the
+		// index norms, or there is nowhere to write the file.
+
+		File docLengthFile = null;
+		if (!params.containsKey("materializeDocLengths") || Boolean.parseBoolean(params.get("materializeDocLengths"))) {
+			if (params.containsKey("docLengthTablePath")) {
+				docLengthFile = new File(params.get("docLengthTablePath"));
+			} else {
+				docLengthFile = getSideFile(params.get("indexPath"), "docLengths.qryeval");
+			}
+		}
+
+		DocLengthStore s = null;
+		if (docLengthFile == null) {
+			s = new DocLengthStore(READER);
+		} else {
+			s = DocLengthStore.open(READER, docLengthFile);
+		}
+
+		// The collection statistics are read once and shared by every
+		// scoring call of the ranked retrieval models.
+
+		CollectionStats stats = new CollectionStats(READER, s);
 
 		RetrievalModel model = null;
 		if (params.get("retrievalAlgorithm").equalsIgnoreCase("UnrankedBoolean")) {
 			model = new RetrievalModelUnrankedBoolean();
 		} else if (params.get("retrievalAlgorithm").equalsIgnoreCase("RankedBoolean")) {
 			model = new RetrievalModelRankedBoolean(); 
+		} else if (params.get("retrievalAlgorithm").equalsIgnoreCase("BM25")) {
+			model = new RetrievalModelBM25(stats);
+		} else if (params.get("retrievalAlgorithm").equalsIgnoreCase("Indri")) {
+			model = new RetrievalModelIndri(stats);
+		} else {
+			fatalError("Error: Unknown retrieval model: " + params.get("retrievalAlgorithm"));
+		}
+
+		// Retrieval model parameters are named model:parameter, for
+		// example BM25:k_1=1.2 or Indri:mu=2500.
+
+		String modelPrefix = params.get("retrievalAlgorithm").toLowerCase() + ":";
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (param.getKey().toLowerCase().startsWith(modelPrefix) &&
+					!model.setParameter(param.getKey().substring(modelPrefix.length()), param.getValue())) {
+				fatalError("Error: Invalid retrieval model parameter: " + param.getKey());
+			}
+		}
+
+		// Pseudo-relevance feedback is enabled by fb=true.  The top
+		// documents' TermVectors are fetched by fbThreads threads.
+
+		if (params.containsKey("fb") && Boolean.parseBoolean(params.get("fb"))) {
+			if (!(model instanceof RetrievalModelIndri)) {
+				fatalError("Error: fb requires the Indri retrieval model");
+			}
+			int fbThreads = Runtime.getRuntime().availableProcessors();
+			if (params.containsKey("fbThreads")) {
+				fbThreads = Integer.parseInt(params.get("fbThreads"));
+			}
+			expander = new QryExpander(stats, fbThreads);
+			for (String name : new String[] { "fbDocs", "fbTerms", "fbMu", "fbOrigWeight" }) {
+				if (params.containsKey(name) && !expander.setParameter(name, params.get(name))) {
+					fatalError("Error: Invalid feedback parameter: " + name + "=" + params.get(name));
+				}
+			}
 		}
 
 
@@ -173,20 +341,33 @@ public class QryEval {
 		//  parser.
 
 		String queryFilePath = params.get("queryFilePath");
-		Scanner queryScan = new Scanner(new File(queryFilePath));
-		String query = null;
-		String trecEvalOutputPath = params.get("trecEvalOutputPath");
-		BufferedWriter writer = null;
-		writer = new BufferedWriter(new FileWriter(new File(trecEvalOutputPath)));
-		do {
-			query = queryScan.nextLine();
-			String[] pair = query.split(":");
-			Qryop qTree;
-			qTree = parseQuery (pair[1]);
-			printResults (pair[0], qTree.evaluate (model), writer);
-		} while (queryScan.hasNext());
-		writer.close();
-		queryScan.close();
+		List<String> queries = readQueries(queryFilePath);
+
+		int numThreads = 1;
+		if (params.containsKey("numThreads")) {
+			numThreads = Integer.parseInt(params.get("numThreads"));
+		}
+
+		// Replay mode times the queries instead of writing their
+		// results to the trec_eval output.
+
+		if (params.containsKey("replay") && Boolean.parseBoolean(params.get("replay"))) {
+			QryReplay replay = new QryReplay(numThreads);
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				if (param.getKey().startsWith("replay") && !param.getKey().equals("replay") &&
+						!replay.setParameter(param.getKey(), param.getValue())) {
+					fatalError("Error: Invalid replay parameter: " + param.getKey() + "=" + param.getValue());
+				}
+			}
+			replay.run(queries, model);
+			System.out.println(replay);
+		} else {
+			String trecEvalOutputPath = params.get("trecEvalOutputPath");
+			BufferedWriter writer = null;
+			writer = new BufferedWriter(new FileWriter(new File(trecEvalOutputPath)));
+			evaluateQueries(queries, model, numThreads, writer);
+			writer.close();
+		}
 
 		/*
 		 *  Create the trec_eval output.  Your code should write to the
@@ -200,6 +381,170 @@ public class QryEval {
 
 		printMemoryUsage(false);
 
+		if (QryopIlTerm.cache != null) {
+			System.out.println(QryopIlTerm.cache);
+		}
+
+		if (QryopIl.resultCache != null) {
+			System.out.println(QryopIl.resultCache);
+		}
+
+		if (expander != null) {
+			System.out.println(expander);
+			expander.shutdown();
+		}
+
+	}
+
+	/**
+	 *  Read a query file.  Each line has the format queryId:query.
+	 *  Blank lines are ignored.
+	 *  @param queryFilePath The path to the query file.
+	 *  @return The lines of the query file, in order.
+	 *  @throws IOException
+	 */
+	static List<String> readQueries (String queryFilePath) throws IOException {
+		List<String> queries = new ArrayList<String>();
+		Scanner queryScan = new Scanner(new File(queryFilePath));
+		while (queryScan.hasNextLine()) {
+			String query = queryScan.nextLine();
+			if (query.trim().length() > 0) {
+				queries.add(query);
+			}
+		}
+		queryScan.close();
+		return queries;
+	}
+
+	/**
+	 *  Evaluate a batch of queries and write their results in the order
+	 *  of the queries.  The queries are evaluated by a pool of threads
+	 *  that share the index reader (see evaluateQuery).  Each thread
+	 *  formats the results of its query; the results are written as soon
+	 *  as the results of all earlier queries have been written, so the
+	 *  output does not depend upon which thread finishes first.
+	 *  @param queries Query file lines in the format queryId:query.
+	 *  @param model The retrieval model.
+	 *  @param numThreads The number of queries to evaluate at once.
+	 *  @param writer The trec_eval output.
+	 *  @throws Exception
+	 */
+	static void evaluateQueries (List<String> queries, final RetrievalModel model,
+			int numThreads, BufferedWriter writer) throws Exception {
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+
+		try {
+			for (final String query : queries) {
+				results.add(pool.submit(new Callable<String[]>() {
+					@Override
+					public String[] call() throws Exception {
+						StringBuilder profile = profileQueries ? new StringBuilder() : null;
+						String lines = evaluateQuery (query, model, profile);
+						return new String[] { (profile == null) ? "" : profile.toString(), lines };
+					}
+				}));
+			}
+
+			// Futures are visited in query order, which reorders results
+			// that finish early.  Profiles are printed, but they are not
+			// part of the trec_eval output.
+
+			for (Future<String[]> result : results) {
+				String[] lines;
+				try {
+					lines = result.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+				System.out.print(lines[0]);
+				System.out.print(lines[1]);
+				writer.write(lines[1]);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 *  Evaluate one query:  parse it, optimize it, evaluate it, expand
+	 *  and evaluate it again if feedback is enabled, and format its
+	 *  results.  A query with a syntax error is reported and has no
+	 *  results.
+	 *  @param query A query file line in the format queryId:query.
+	 *  @param model The retrieval model.
+	 *  @return The query's results in trec_eval format.
+	 *  @throws Exception
+	 */
+	static String evaluateQuery (String query, RetrievalModel model) throws Exception {
+		return evaluateQuery (query, model, null);
+	}
+
+	/**
+	 *  Evaluate one query, and if profile is not null, profile each
+	 *  query tree that is evaluated (see QryProfiler).
+	 *  @param query A query file line in the format queryId:query.
+	 *  @param model The retrieval model.
+	 *  @param profile Where to write the profiles, or null.
+	 *  @return The query's results in trec_eval format.
+	 *  @throws Exception
+	 */
+	static String evaluateQuery (String query, RetrievalModel model,
+			StringBuilder profile) throws Exception {
+
+		long start = System.nanoTime();
+		boolean error = true;
+
+		try {
+			String[] pair = query.split(":");
+			Qryop qTree;
+			try {
+				qTree = parseQuery (pair[1]);
+			} catch (QrySyntaxException e) {
+				// A query that cannot be parsed has no results.
+				System.err.println(pair[0] + ":  " + e.getMessage());
+				return "";
+			}
+			if (optimizeQueries) {
+				qTree = QryOptimizer.optimize (qTree, model);
+			}
+			QryResult result = evaluate (pair[0], qTree, model, profile);
+			if (expander != null) {
+				qTree = parseQuery (expander.expand (pair[1], result.docScores));
+				if (optimizeQueries) {
+					qTree = QryOptimizer.optimize (qTree, model);
+				}
+				result = evaluate (pair[0], qTree, model, profile);
+			}
+			String lines = formatResults (pair[0], result);
+			error = false;
+			return lines;
+		} finally {
+			QryMetrics.query (model, System.nanoTime() - start, error);
+		}
+	}
+
+	/**
+	 *  Evaluate a query tree, profiling it if profile is not null.
+	 */
+	private static QryResult evaluate (String queryId, Qryop qTree, RetrievalModel model,
+			StringBuilder profile) throws IOException {
+
+		QryMetrics.operators (qTree);
+
+		if (profile == null) {
+			return qTree.evaluate (model);
+		}
+
+		qTree = QryProfiler.instrument (qTree);
+		QryResult result = qTree.evaluate (model);
+		profile.append("Profile of query " + queryId + ":  " + qTree + "\n");
+		profile.append(QryProfiler.explain (qTree));
+		return result;
 	}
 
 	/**
@@ -214,6 +559,47 @@ public class QryEval {
 		System.exit(1);
 	}
 
+	/**
+	 *  Get the external id table, building or opening it if this is
+	 *  the first time that it is needed.
+	 *  @return The external id table.
+	 *  @throws IOException
+	 */
+	static synchronized ExternalIdTable getExternalIdTable () throws IOException {
+		if (externalIdTable == null && externalIdTableFile == null) {
+			externalIdTable = ExternalIdTable.open(READER);
+		} else if (externalIdTable == null) {
+			externalIdTable = ExternalIdTable.open(READER, externalIdTableFile);
+		}
+		return externalIdTable;
+	}
+
+	/**
+	 *  Find the default location of a side file that holds data
+	 *  derived from the index.  The file is kept in the index directory
+	 *  if that directory is writable; otherwise it is kept in a
+	 *  directory for the index under java.io.tmpdir, so that read-only
+	 *  and shared indexes can be used.
+	 * @param indexPath The index directory.
+	 * @param name The name of the side file.
+	 * @return The side file, or null if there is no writable directory
+	 *  for it, in which case the data should be held in memory.
+	 * @throws IOException
+	 */
+	static File getSideFile (String indexPath, String name) throws IOException {
+		File indexDir = new File(indexPath).getCanonicalFile();
+		if (indexDir.canWrite()) {
+			return new File(indexDir, name);
+		}
+		File cacheDir = new File(System.getProperty("java.io.tmpdir"),
+				"qryeval-" + System.getProperty("user.name") + "-" +
+				Integer.toHexString(indexDir.getPath().hashCode()));
+		if ((cacheDir.isDirectory() || cacheDir.mkdirs()) && cacheDir.canWrite()) {
+			return new File(cacheDir, name);
+		}
+		return null;
+	}
+
 	/**
 	 *  Get the external document id for a document specified by an
 	 *  internal document id. If the internal id doesn't exists, returns null.
@@ -222,9 +608,10 @@ public class QryEval {
 	 * @throws IOException 
 	 */
 	static String getExternalDocid (int iid) throws IOException {
-		Document d = QryEval.READER.document (iid);
-		String eid = d.get ("externalId");
-		return eid;
+		if (iid < 0 || iid >= READER.maxDoc()) {
+			return null;
+		}
+		return getExternalIdTable().getExternalDocid(iid);
 	}
 
 	/**
@@ -237,36 +624,22 @@ public class QryEval {
 	 * @throws Exception
 	 */
 	static int getInternalDocid (String externalId) throws Exception {
-		Query q = new TermQuery(new Term("externalId", externalId));
+		int iid = getExternalIdTable().getInternalDocid(externalId);
 
-		IndexSearcher searcher = new IndexSearcher(QryEval.READER);
-		TopScoreDocCollector collector = TopScoreDocCollector.create(1,false);
-		searcher.search(q, collector);
-		ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-		if (hits.length < 1) {
+		if (iid < 0) {
 			throw new Exception("External id not found.");
 		} else {
-			return hits[0].doc;
+			return iid;
 		}
 	}
 
 	/**
-	 * parseQuery converts a query string into a query tree.
-	 * 
-	 * @param qString
-	 *          A string containing a query.
-	 * @param qTree
-	 *          A query tree
-	 * @throws IOException
+	 *  Add a default query operator to an unstructured query. This
+	 *  is a tiny bit easier if unnecessary whitespace is removed.
+	 *  @param qString A query string.
+	 *  @return A structured query string.
 	 */
-	static Qryop parseQuery(String qString) throws IOException {
-
-		Qryop currentOp = null;
-		Stack<Qryop> stack = new Stack<Qryop>();
-
-		// Add a default query operator to an unstructured query. This
-		// is a tiny bit easier if unnecessary whitespace is removed.
+	static String addDefaultOperator(String qString) {
 
 		qString = qString.trim();
 
@@ -274,89 +647,23 @@ public class QryEval {
 			qString = "#or(" + qString + ")";
 		}
 
-		// Tokenize the query.
-
-		StringTokenizer tokens = new StringTokenizer(qString, "\t\n\r ,()", true);
-		String token = null;
-
-		// Each pass of the loop processes one token. To improve
-		// efficiency and clarity, the query operator on the top of the
-		// stack is also stored in currentOp.
-
-		while (tokens.hasMoreTokens()) {
-
-			token = tokens.nextToken();
-
-			if (token.matches("[ ,(\t\n\r]")) {
-				// Ignore most delimiters.
-			} else if (token.equalsIgnoreCase("#and")) {
-				currentOp = new QryopSlAnd();
-				stack.push(currentOp);
-			} else if (token.equalsIgnoreCase("#or")) {
-				currentOp = new QryopSlOr();
-				stack.push(currentOp);
-			} else if (token.equalsIgnoreCase("#syn")) {
-				currentOp = new QryopIlSyn();
-				stack.push(currentOp);
-			} else if (token.toLowerCase().startsWith("#near/")) {  
-				String[] nearOpt = token.split("/");
-				currentOp = new QryopIlNear(Integer.parseInt(nearOpt[1]));
-				stack.push(currentOp);
-			} else if (token.startsWith(")")) { // Finish current query operator.
-				// If the current query operator is not an argument to
-				// another query operator (i.e., the stack is empty when it
-				// is removed), we're done (assuming correct syntax - see
-				// below). Otherwise, add the current operator as an
-				// argument to the higher-level operator, and shift
-				// processing back to the higher-level operator.
-
-				stack.pop();
-
-				if (stack.empty()) {
-					if (currentOp instanceof QryopIlNear) {
-						Qryop arg = currentOp;
-						currentOp = new QryopSlScore();
-						currentOp.add(arg);
-					}
-					break;
-				}
-
-				Qryop arg = currentOp;
-				currentOp = stack.peek();
-				currentOp.add(arg);
-			} else {
-
-				// NOTE: You should do lexical processing of the token before
-				// creating the query term, and you should check to see whether
-				// the token specifies a particular field (e.g., apple.title).
-				
-				String field = "body"; // Set the default field to body.
-				if (token.contains(".")) { // Check whether the token specifies a particular field.
-					String[] termAndField = token.split("\\.");
-					if (termAndField.length > 1) {
-						if (termAndField[1].equalsIgnoreCase("url") || termAndField[1].equalsIgnoreCase("keywords") || termAndField[1].equalsIgnoreCase("title") || termAndField[1].equalsIgnoreCase("body") || termAndField[1].equalsIgnoreCase("inlink")) {
-							token = termAndField[0];
-							field = termAndField[1];
-						}
-					}
-				}
-
-				String[] tokenized = tokenizeQuery(token);
-				if (tokenized.length > 0) {
-					currentOp.add(new QryopIlTerm(tokenized[0], tokenizeQuery(field)[0]));
-				}
-			}
-		}
-
-		// A broken structured query can leave unprocessed tokens on the
-		// stack, so check for that.
-
-		if (tokens.hasMoreTokens()) {
-			System.err.println("Error:  Query syntax is incorrect.  " + qString);
-			return null;
-		}
+		return qString;
+	}
 
-		return currentOp;
+	/**
+	 * parseQuery converts a query string into a query tree.  See
+	 * QryParser for the query syntax.
+	 * 
+	 * @param qString
+	 *          A string containing a query.
+	 * @param qTree
+	 *          A query tree
+	 * @throws QrySyntaxException
+	 *          If the query string is not a query.
+	 * @throws IOException
+	 */
+	static Qryop parseQuery(String qString) throws IOException {
+		return QryParser.parse(qString);
 	}
 
 	/**
@@ -382,77 +689,130 @@ public class QryEval {
 	/**
 	 * Print the query results to console and create the trec_eval output.
 	 * 
+	 * @param queryId Original queryId.
+	 * @param result Result object generated by {@link Qryop#evaluate()}.
+	 * @param writer Write the result the a specific document.
+	 * @throws IOException 
+	 */
+	static void printResults(String queryId, QryResult result, BufferedWriter writer) throws IOException { 
+		String lines = formatResults(queryId, result);
+		System.out.print(lines);
+		writer.write(lines);
+	}
+
+	/**
+	 * Format the query results in trec_eval format.
+	 * 
 	 * The output format:
 	 * QueryID Q0 DocID Rank Score RunID
 	 * 
 	 * @param queryId Original queryId.
 	 * @param result Result object generated by {@link Qryop#evaluate()}.
-	 * @param writer Write the result the a specific document.
+	 * @return The result lines.
 	 * @throws IOException 
 	 */
-	static void printResults(String queryId, QryResult result, BufferedWriter writer) throws IOException { 
+	static String formatResults(String queryId, QryResult result) throws IOException { 
 
-		Collections.sort(result.docScores.scores, new Comparator<ScoreList.ScoreListEntry>(){
-			@Override
-			public int compare(ScoreList.ScoreListEntry arg0, ScoreList.ScoreListEntry arg1) {
-				// TODO Auto-generated method stub
-				if ((arg0.getScore() - arg1.getScore()) > 0){
-					return -1;
-				} else if ((arg0.getScore() - arg1.getScore()) < 0) {
-					return 1;
-				}
+		// Select the top documents.  Ties are broken by external id.
 
-				try {
-					return getExternalDocid(arg0.getDocid()).compareTo(getExternalDocid(arg1.getDocid()));
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					return 0;
-				}
+		ExternalIdTable externalIds = getExternalIdTable();
 
-			}
+		result.docScores.selectTop(trecEvalOutputLength, getTieBreaker());
 
-		});
+		StringBuilder lines = new StringBuilder();
 
-		if (result.docScores.scores.size() < 1) { // Print out the dummy result if the there is no matching document.
-			String resultLine = queryId + " Q0 dummy 1 0 run-1";
-			System.out.println(resultLine);
-			writer.write(resultLine + "\n");
+		if (result.docScores.size() < 1) { // Print out the dummy result if the there is no matching document.
+			lines.append(queryId + " Q0 dummy 1 0 run-1\n");
 		} else {
-			try {
-				for (int i = 0; i < result.docScores.scores.size() && i < 100; i++) {
-					String resultLine = queryId + " Q0 " + getExternalDocid(result.docScores.getDocid(i)) + " " + (i+1) + " " + result.docScores.getDocidScore(i) + " run-1 ";
-					System.out.println(resultLine);
-					writer.write(resultLine + "\n");
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			for (int i = 0; i < result.docScores.size(); i++) {
+				lines.append(queryId + " Q0 " + externalIds.getExternalDocid(result.docScores.getDocid(i)) + " " + (i+1) + " " + result.docScores.getDocidScore(i) + " run-1 \n");
 			}
 		}
+
+		return lines.toString();
+	}
+
+	/**
+	 *  Get the comparator that orders documents that have the same
+	 *  score.  Ties are broken by external id, which is the same as
+	 *  comparing external id ordinals.
+	 *  @return The comparator.
+	 *  @throws IOException
+	 */
+	static ScoreList.DocidComparator getTieBreaker() throws IOException {
+
+		final ExternalIdTable externalIds = getExternalIdTable();
+
+		return new ScoreList.DocidComparator(){
+			@Override
+			public int compare(int docid1, int docid2) {
+				return Integer.compare(externalIds.getOrdinal(docid1), externalIds.getOrdinal(docid2));
+			}
+		};
 	}
 
 	/**
 	 *  Given a query string, returns the terms one at a time with stopwords
 	 *  removed and the terms stemmed using the Krovetz stemmer. 
 	 * 
-	 *  Use this method to process raw query terms. 
+	 *  Use this method to process raw query terms.  The stems of
+	 *  recently used strings are cached, so the returned array is
+	 *  shared and must not be modified.
 	 * 
 	 *  @param query String containing query
 	 *  @return Array of query tokens
 	 *  @throws IOException
 	 */
-	static String[] tokenizeQuery(String query) throws IOException {
+	static String[] tokenizeQuery(final String query) throws IOException {
+
+		String[] tokens = (tokenCacheSize > 0) ? tokenCache.get(query) : null;
+
+		if (tokens == null) {
+			QryMetrics.tokenCacheLookup(false);
+			tokens = tokenCache.load(query, tokenCacheSize, new BoundedCache.Loader<String[]>() {
+				public String[] load() throws IOException {
+					return analyze(query);
+				}
+			});
+		} else {
+			QryMetrics.tokenCacheLookup(true);
+		}
 
-		TokenStreamComponents comp = analyzer.createComponents("dummy", new StringReader(query));
-		TokenStream tokenStream = comp.getTokenStream();
+		return tokens;
+	}
+
+	/**
+	 *  Get the number of strings in the token cache.
+	 *  @return The number of cached strings.
+	 */
+	static int getTokenCacheSize() {
+		return tokenCache.size();
+	}
 
-		CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-		tokenStream.reset();
+	/**
+	 *  Run a string through the analyzer.  Analyzer.tokenStream reuses
+	 *  the calling thread's token stream components, so the stream must
+	 *  be ended and closed before the thread analyzes another string.
+	 *  @param query The string to analyze.
+	 *  @return The stems.
+	 *  @throws IOException
+	 */
+	private static String[] analyze(String query) throws IOException {
 
+		TokenStream tokenStream = analyzer.tokenStream("dummy", new StringReader(query));
 		List<String> tokens = new ArrayList<String>();
-		while (tokenStream.incrementToken()) {
-			String term = charTermAttribute.toString();
-			tokens.add(term);
+
+		try {
+			CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+
+			while (tokenStream.incrementToken()) {
+				String term = charTermAttribute.toString();
+				tokens.add(term);
+			}
+			tokenStream.end();
+		} finally {
+			tokenStream.close();
 		}
 		return tokens.toArray(new String[tokens.size()]);
 	}
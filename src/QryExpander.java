@@ -0,0 +1,396 @@
+/**
+ *  QryExpander implements pseudo-relevance feedback query expansion
+ *  (RM3) for the Indri retrieval model.  The top fbDocs documents of
+ *  the initial ranking are treated as relevant.  Each term in them is
+ *  weighted by
+ *
+ *    sum over d of  p(t|d) * p(I|d) * log (1 / p(t|C))
+ *
+ *  where p(t|d) is smoothed with fbMu and p(I|d) is the document's
+ *  score for the original query.  The fbTerms terms with the highest
+ *  weights form an expansion query, and the expanded query is
+ *
+ *    #WAND (fbOrigWeight original (1 - fbOrigWeight) #WAND (w1 t1 w2 t2 ...))
+ *
+ *  where the expansion weights w1, w2, ... are normalized to add up
+ *  to 1.
+ *
+ *  The TermVectors of the top documents are fetched in parallel.
+ *  Term weights are accumulated in an open-addressing table of
+ *  primitive arrays, and the top terms are selected with a bounded
+ *  heap.  The smoothed part of p(t|d) is the same for every term in
+ *  a document, so it is added once per term instead of once per
+ *  (term, document) pair.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class QryExpander {
+
+  private static final String FIELD = "body";
+
+  private int fbDocs = 10;
+  private int fbTerms = 10;
+  private double fbMu = 0.0;
+  private double fbOrigWeight = 0.5;
+
+  private CollectionStats stats;
+  private ExecutorService pool;
+
+  //  Expansion latency, for the report at the end of the run.
+
+  private AtomicLong queries = new AtomicLong();
+  private AtomicLong totalNanos = new AtomicLong();
+  private AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   *  Constructor.
+   *  @param stats The collection statistics of the index.
+   *  @param numThreads The number of threads that fetch TermVectors.
+   */
+  public QryExpander(CollectionStats stats, int numThreads) {
+    this.stats = stats;
+    this.pool = Executors.newFixedThreadPool (Math.max (1, numThreads),
+      new ThreadFactory () {
+	public Thread newThread(Runnable r) {
+	  Thread t = new Thread (r, "QryExpander");
+	  t.setDaemon (true);
+	  return t;
+	}
+      });
+  }
+
+  /**
+   *  Set a feedback parameter:  fbDocs, fbTerms, fbMu, or fbOrigWeight.
+   *  @param name The name of the parameter.
+   *  @param value The parameter's value.
+   *  @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter(String name, String value) {
+
+    try {
+      if (name.equals ("fbDocs") && (Integer.parseInt (value) > 0))
+	this.fbDocs = Integer.parseInt (value);
+      else if (name.equals ("fbTerms") && (Integer.parseInt (value) > 0))
+	this.fbTerms = Integer.parseInt (value);
+      else if (name.equals ("fbMu") && (Double.parseDouble (value) >= 0.0))
+	this.fbMu = Double.parseDouble (value);
+      else if (name.equals ("fbOrigWeight") &&
+	       (Double.parseDouble (value) >= 0.0) && (Double.parseDouble (value) <= 1.0))
+	this.fbOrigWeight = Double.parseDouble (value);
+      else
+	return false;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Expand a query.
+   *  @param query The original query string.
+   *  @param initial The scores of the original query.  The list is
+   *    not modified.
+   *  @return The expanded query string, which can be given to
+   *    QryEval.parseQuery.
+   *  @throws Exception
+   */
+  public String expand(String query, ScoreList initial) throws Exception {
+
+    long start = System.nanoTime();
+
+    //  Select the top documents from a copy of the initial ranking.
+
+    ScoreList top = new ScoreList ();
+    top.addAll (initial);
+    top.selectTop (this.fbDocs, QryEval.getTieBreaker());
+
+    //  Fetch the TermVectors in parallel.
+
+    List<Future<TermVector>> vectors = new ArrayList<Future<TermVector>>();
+
+    for (int i = 0; i < top.size(); i++) {
+      final int docid = top.getDocid (i);
+
+      vectors.add (this.pool.submit (new Callable<TermVector> () {
+	  public TermVector call() throws IOException {
+	    return TermVector.get (docid, FIELD);
+	  }
+	}));
+    }
+
+    //  Accumulate sum over d of tf * p(I|d) / (|d| + mu) for each term,
+    //  and sum over d of p(I|d) / (|d| + mu) for the smoothed part.  A
+    //  top document that has no body text (it matched other fields)
+    //  has an empty TermVector, so it adds only to the smoothed part.
+
+    TermWeights weights = new TermWeights ();
+    CollectionStats.FieldStats field = this.stats.get (FIELD);
+    double smoothing = 0.0;
+
+    for (int i = 0; i < top.size(); i++) {
+      TermVector vector = getResult (vectors.get (i));
+      double docWeight = top.getDocidScore (i) /
+	(field.getDocLength (top.getDocid (i)) + this.fbMu);
+
+      smoothing += docWeight;
+
+      for (int j = 1; j < vector.stemsLength(); j++) {
+
+	//  Terms that contain periods and commas are not query terms.
+
+	String stem = vector.stemString (j);
+
+	if ((stem.indexOf ('.') < 0) && (stem.indexOf (',') < 0))
+	  weights.add (stem, vector.stemFreq (j) * docWeight);
+      }
+    }
+
+    //  Finish the term weights, keeping the best in a min-heap.
+
+    int[] heap = new int[this.fbTerms];
+    double[] heapWeights = new double[this.fbTerms];
+    int heapSize = 0;
+
+    for (int slot = 0; slot < weights.capacity(); slot++) {
+
+      String term = weights.getKey (slot);
+
+      if (term == null)
+	continue;
+
+      double pMle = (double) TermVector.getTermStats (FIELD, term).ctf / field.sumLength;
+      double weight =
+	(weights.getValue (slot) + this.fbMu * pMle * smoothing) * Math.log (1.0 / pMle);
+
+      if (heapSize < heap.length) {
+	heap[heapSize] = slot;
+	heapWeights[heapSize] = weight;
+	siftUp (heap, heapWeights, heapSize++, weights);
+      } else if (compare (weight, slot, heapWeights[0], heap[0], weights) > 0) {
+	heap[0] = slot;
+	heapWeights[0] = weight;
+	siftDown (heap, heapWeights, heapSize, weights);
+      }
+    }
+
+    //  Write the expanded query.  Popping the heap gives the terms in
+    //  increasing order of weight.  The weights are often tiny, so they
+    //  are normalized to add up to 1 and written in full precision;
+    //  rounding them would create ties, or weights that are all 0.
+
+    double totalWeight = 0.0;
+
+    for (int i = 0; i < heapSize; i++)
+      totalWeight += heapWeights[i];
+
+    if (totalWeight <= 0.0)
+      totalWeight = 1.0;
+
+    StringBuilder expansion = new StringBuilder ();
+
+    while (heapSize > 0) {
+      expansion.insert (0, " " + Double.toString (heapWeights[0] / totalWeight) +
+			" " + weights.getKey (heap[0]));
+      heapSize --;
+      heap[0] = heap[heapSize];
+      heapWeights[0] = heapWeights[heapSize];
+      siftDown (heap, heapWeights, heapSize, weights);
+    }
+
+    String expanded = query;
+
+    if (expansion.length() > 0)
+      expanded = "#wand ( " + this.fbOrigWeight + " " +
+	QryEval.addDefaultOperator (query) + " " + (1.0 - this.fbOrigWeight) +
+	" #wand (" + expansion + " ) )";
+
+    long nanos = System.nanoTime() - start;
+
+    this.queries.incrementAndGet ();
+    this.totalNanos.addAndGet (nanos);
+
+    for (long max = this.maxNanos.get(); (nanos > max) && ! this.maxNanos.compareAndSet (max, nanos); )
+      max = this.maxNanos.get();
+
+    return expanded;
+  }
+
+  /**
+   *  Stop the threads that fetch TermVectors.
+   */
+  public void shutdown() {
+    this.pool.shutdownNow();
+  }
+
+  /**
+   *  Return a summary of the expansion latency.
+   */
+  public String toString() {
+    long n = Math.max (1, this.queries.get());
+    return ("Feedback:  " + this.queries.get() + " queries expanded, " +
+	    String.format (Locale.ROOT, "%.2f", this.totalNanos.get() / 1e6 / n) +
+	    " ms average, " +
+	    String.format (Locale.ROOT, "%.2f", this.maxNanos.get() / 1e6) +
+	    " ms maximum");
+  }
+
+  private static TermVector getResult(Future<TermVector> vector) throws Exception {
+    try {
+      return vector.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+	throw (Exception) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   *  Compare two candidate terms.  Ties in weight are broken by the
+   *  term string, so the expansion does not depend on hash order.
+   *  @return A positive number if the first term is better.
+   */
+  private static int compare(double weight1, int slot1, double weight2, int slot2,
+			     TermWeights weights) {
+    if (weight1 != weight2)
+      return (weight1 > weight2) ? 1 : -1;
+
+    return weights.getKey (slot2).compareTo (weights.getKey (slot1));
+  }
+
+  private static void siftUp(int[] heap, double[] heapWeights, int i,
+			     TermWeights weights) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (compare (heapWeights[parent], heap[parent], heapWeights[i], heap[i], weights) <= 0)
+	return;
+
+      swap (heap, heapWeights, i, parent);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(int[] heap, double[] heapWeights, int heapSize,
+			       TermWeights weights) {
+    int i = 0;
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= heapSize)
+	return;
+
+      if ((child + 1 < heapSize) &&
+	  (compare (heapWeights[child + 1], heap[child + 1],
+		    heapWeights[child], heap[child], weights) < 0))
+	child ++;
+
+      if (compare (heapWeights[child], heap[child], heapWeights[i], heap[i], weights) >= 0)
+	return;
+
+      swap (heap, heapWeights, i, child);
+      i = child;
+    }
+  }
+
+  private static void swap(int[] heap, double[] heapWeights, int i, int j) {
+    int slot = heap[i];
+    double weight = heapWeights[i];
+
+    heap[i] = heap[j];
+    heapWeights[i] = heapWeights[j];
+    heap[j] = slot;
+    heapWeights[j] = weight;
+  }
+
+  /**
+   *  An open-addressing hash table from terms to weights.  Keys,
+   *  their hash codes, and weights are kept in parallel arrays, and
+   *  collisions are resolved by linear probing, so adding to a weight
+   *  does not create objects.
+   */
+  private static class TermWeights {
+
+    private String[] keys = new String[1024];
+    private int[] hashes = new int[1024];
+    private double[] values = new double[1024];
+    private int size = 0;
+
+    /**
+     *  Add to the weight of a term.
+     */
+    void add(String key, double value) {
+
+      int hash = key.hashCode();
+      int slot = this.find (key, hash);
+
+      if (this.keys[slot] == null) {
+	if (2 * (this.size + 1) > this.keys.length) {
+	  this.grow();
+	  slot = this.find (key, hash);
+	}
+
+	this.keys[slot] = key;
+	this.hashes[slot] = hash;
+	this.size ++;
+      }
+
+      this.values[slot] += value;
+    }
+
+    int capacity() {
+      return this.keys.length;
+    }
+
+    String getKey(int slot) {
+      return this.keys[slot];
+    }
+
+    double getValue(int slot) {
+      return this.values[slot];
+    }
+
+    /**
+     *  Find the slot that holds a key, or the empty slot where it
+     *  belongs.
+     */
+    private int find(String key, int hash) {
+
+      int mask = this.keys.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+
+      while ((this.keys[slot] != null) &&
+	     ((this.hashes[slot] != hash) || ! this.keys[slot].equals (key)))
+	slot = (slot + 1) & mask;
+
+      return slot;
+    }
+
+    private void grow() {
+
+      String[] oldKeys = this.keys;
+      int[] oldHashes = this.hashes;
+      double[] oldValues = this.values;
+
+      this.keys = new String[2 * oldKeys.length];
+      this.hashes = new int[2 * oldKeys.length];
+      this.values = new double[2 * oldKeys.length];
+
+      for (int i = 0; i < oldKeys.length; i++) {
+	if (oldKeys[i] != null) {
+	  int slot = this.find (oldKeys[i], oldHashes[i]);
+	  this.keys[slot] = oldKeys[i];
+	  this.hashes[slot] = oldHashes[i];
+	  this.values[slot] = oldValues[i];
+	}
+      }
+    }
+  }
+}
@@ -0,0 +1,470 @@
+/**
+ *  QryMetrics counts what QryEval does while it runs and publishes
+ *  the counts as JMX MBeans, so that a long batch of queries can be
+ *  watched with jconsole or a JMX scraper.  Nothing is counted unless
+ *  start() has been called (the jmx parameter).  The MBeans are:
+ *
+ *    QryEval:type=Queries,model=<model>
+ *      Count, Errors (queries that could not be parsed or that
+ *      threw an exception), QueriesPerSecond (over the last minute),
+ *      MeanQueriesPerSecond, and the mean, p50, p95, p99, p99.9 and
+ *      maximum latency in milliseconds.  There is one MBean for each
+ *      retrieval model.
+ *
+ *    QryEval:type=Operators
+ *      Evaluations, the number of query operators of each type (AND,
+ *      OR, WAND, SCORE, SYN, NEAR, WINDOW, TERM) that were evaluated.
+ *
+ *    QryEval:type=Index
+ *      InvListsRead, PostingsDecoded, PositionsDecoded and
+ *      PostingBytesDecoded (4 bytes for each docid, tf and position
+ *      decoded into an InvList or read through a cursor), and
+ *      TermVectorsRead, ExternalIdLookups and StoredFieldReads.
+ *
+ *    QryEval:type=Cache,name=<cache>
+ *      Hits, Misses, HitRate and Size, for the InvList, Result,
+ *      TermVector, TermStats and Token caches.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+public class QryMetrics {
+
+  private static final String DOMAIN = "QryEval";
+
+  //  True once start() has been called.  The counting methods do
+  //  nothing until then, so the index and operator code pays for one
+  //  test of a static field.
+
+  private static boolean enabled = false;
+  private static long startNanos;
+
+  private static final LongAdder invListsRead = new LongAdder ();
+  private static final LongAdder postingsDecoded = new LongAdder ();
+  private static final LongAdder positionsDecoded = new LongAdder ();
+  private static final LongAdder termVectorsRead = new LongAdder ();
+  private static final LongAdder externalIdLookups = new LongAdder ();
+  private static final LongAdder storedFieldReads = new LongAdder ();
+
+  //  Hits and misses of the caches that do not count their own.
+
+  private static final LongAdder termVectorCacheHits = new LongAdder ();
+  private static final LongAdder termVectorCacheMisses = new LongAdder ();
+  private static final LongAdder termStatsCacheHits = new LongAdder ();
+  private static final LongAdder termStatsCacheMisses = new LongAdder ();
+  private static final LongAdder tokenCacheHits = new LongAdder ();
+  private static final LongAdder tokenCacheMisses = new LongAdder ();
+
+  private static final ConcurrentMap<String, LongAdder> operators =
+    new ConcurrentSkipListMap<String, LongAdder> ();
+
+  private static final ConcurrentMap<String, Queries> queries =
+    new ConcurrentHashMap<String, Queries> ();
+
+  /**
+   *  Start counting and register the MBeans.
+   *  @throws JMException
+   */
+  public static synchronized void start() throws JMException {
+
+    if (enabled)
+      return;
+
+    startNanos = System.nanoTime ();
+    register ("type=Index", new Index (), IndexMXBean.class);
+    register ("type=Operators", new Operators (), OperatorsMXBean.class);
+
+    register ("type=Cache,name=InvList", new Cache () {
+	public long getHits() {
+	  return (QryopIlTerm.cache == null) ? 0 : QryopIlTerm.cache.getHits ();
+	}
+	public long getMisses() {
+	  return (QryopIlTerm.cache == null) ? 0 : QryopIlTerm.cache.getMisses ();
+	}
+	public int getSize() {
+	  return (QryopIlTerm.cache == null) ? 0 : QryopIlTerm.cache.size ();
+	}
+      }, CacheMXBean.class);
+
+    register ("type=Cache,name=Result", new Cache () {
+	public long getHits() {
+	  return (QryopIl.resultCache == null) ? 0 : QryopIl.resultCache.getHits ();
+	}
+	public long getMisses() {
+	  return (QryopIl.resultCache == null) ? 0 : QryopIl.resultCache.getMisses ();
+	}
+	public int getSize() {
+	  return (QryopIl.resultCache == null) ? 0 : QryopIl.resultCache.size ();
+	}
+      }, CacheMXBean.class);
+
+    register ("type=Cache,name=TermVector", new Cache () {
+	public long getHits() {
+	  return termVectorCacheHits.sum ();
+	}
+	public long getMisses() {
+	  return termVectorCacheMisses.sum ();
+	}
+	public int getSize() {
+	  return TermVector.getCacheSize ();
+	}
+      }, CacheMXBean.class);
+
+    register ("type=Cache,name=TermStats", new Cache () {
+	public long getHits() {
+	  return termStatsCacheHits.sum ();
+	}
+	public long getMisses() {
+	  return termStatsCacheMisses.sum ();
+	}
+	public int getSize() {
+	  return TermVector.getStatsCacheSize ();
+	}
+      }, CacheMXBean.class);
+
+    register ("type=Cache,name=Token", new Cache () {
+	public long getHits() {
+	  return tokenCacheHits.sum ();
+	}
+	public long getMisses() {
+	  return tokenCacheMisses.sum ();
+	}
+	public int getSize() {
+	  return QryEval.getTokenCacheSize ();
+	}
+      }, CacheMXBean.class);
+
+    enabled = true;
+  }
+
+  /**
+   *  Register an MBean, replacing any MBean that has the same name.
+   */
+  private static <T> void register(String name, T mbean, Class<T> mbeanInterface)
+    throws JMException {
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+    ObjectName objectName = new ObjectName (DOMAIN + ":" + name);
+
+    if (server.isRegistered (objectName))
+      server.unregisterMBean (objectName);
+
+    server.registerMBean (new StandardMBean (mbean, mbeanInterface, true), objectName);
+  }
+
+  /**
+   *  Record the evaluation of a query.
+   *  @param model The retrieval model.
+   *  @param nanos The time that the query took.
+   *  @param error True if the query could not be evaluated.
+   */
+  public static void query(RetrievalModel model, long nanos, boolean error) {
+
+    if (! enabled)
+      return;
+
+    String name = model.getClass ().getSimpleName ().replaceFirst ("^RetrievalModel", "");
+    Queries q = queries.get (name);
+
+    if (q == null) {
+      Queries created = new Queries ();
+      q = queries.putIfAbsent (name, created);
+
+      if (q == null) {
+	q = created;
+
+	try {
+	  register ("type=Queries,model=" + name, q, QueriesMXBean.class);
+	} catch (JMException e) {
+	  System.err.println ("Warning: Cannot register the query metrics of " + name + ":  " + e);
+	}
+      }
+    }
+
+    q.record (nanos, error);
+  }
+
+  /**
+   *  Record the evaluation of every operator in a query tree.
+   *  @param q The root of the query tree.
+   */
+  public static void operators(Qryop q) {
+
+    if (! enabled)
+      return;
+
+    String name = q.getClass ().getSimpleName ().replaceFirst ("^Qryop(Il|Sl)?", "").toUpperCase ();
+    LongAdder count = operators.get (name);
+
+    if (count == null) {
+      operators.putIfAbsent (name, new LongAdder ());
+      count = operators.get (name);
+    }
+
+    count.increment ();
+
+    for (Qryop arg : q.args)
+      operators (arg);
+  }
+
+  /**
+   *  Record the postings and positions decoded from the index.
+   *  @param postings The number of postings (docid and tf).
+   *  @param positions The number of positions.
+   */
+  public static void postingsDecoded(long postings, long positions) {
+    if (enabled) {
+      postingsDecoded.add (postings);
+      positionsDecoded.add (positions);
+    }
+  }
+
+  /**
+   *  Record an inverted list that was read from the index.
+   *  @param df The number of postings in the list.
+   *  @param ctf The number of positions in the list.
+   */
+  public static void invListRead(long df, long ctf) {
+    if (enabled) {
+      invListsRead.increment ();
+      postingsDecoded (df, ctf);
+    }
+  }
+
+  public static void termVectorRead() {
+    if (enabled)
+      termVectorsRead.increment ();
+  }
+
+  public static void externalIdLookup() {
+    if (enabled)
+      externalIdLookups.increment ();
+  }
+
+  /**
+   *  Record a lookup of the TermVector cache.
+   *  @param hit True if the TermVector was cached.
+   */
+  public static void termVectorCacheLookup(boolean hit) {
+    if (enabled)
+      (hit ? termVectorCacheHits : termVectorCacheMisses).increment ();
+  }
+
+  /**
+   *  Record a lookup of the TermStats cache.
+   *  @param hit True if the TermStats were cached.
+   */
+  public static void termStatsCacheLookup(boolean hit) {
+    if (enabled)
+      (hit ? termStatsCacheHits : termStatsCacheMisses).increment ();
+  }
+
+  /**
+   *  Record a lookup of tokenizeQuery's token cache.
+   *  @param hit True if the tokens were cached.
+   */
+  public static void tokenCacheLookup(boolean hit) {
+    if (enabled)
+      (hit ? tokenCacheHits : tokenCacheMisses).increment ();
+  }
+
+  public static void storedFieldRead() {
+    if (enabled)
+      storedFieldReads.increment ();
+  }
+
+  /**
+   *  The query counts and latencies of one retrieval model.
+   */
+  public interface QueriesMXBean {
+    long getCount();
+    long getErrors();
+    double getQueriesPerSecond();
+    double getMeanQueriesPerSecond();
+    double getLatencyMeanMs();
+    double getLatencyP50Ms();
+    double getLatencyP95Ms();
+    double getLatencyP99Ms();
+    double getLatencyP999Ms();
+    double getLatencyMaxMs();
+  }
+
+  private static class Queries implements QueriesMXBean {
+
+    private static final int WINDOW = 60;	// Seconds
+
+    private final LatencyHistogram latency = new LatencyHistogram ();
+    private final AtomicLong errors = new AtomicLong ();
+    private final long start = startNanos;
+
+    //  Queries per second for the last WINDOW seconds.  Slot i counts
+    //  the queries that finished in second seconds[i].
+
+    private final long[] perSecond = new long[WINDOW];
+    private final long[] seconds = new long[WINDOW];
+
+    void record(long nanos, boolean error) {
+
+      this.latency.record (nanos);
+
+      if (error)
+	this.errors.incrementAndGet ();
+
+      long second = this.second ();
+      int slot = (int) (second % WINDOW);
+
+      synchronized (this.perSecond) {
+	if (this.seconds[slot] != second) {
+	  this.seconds[slot] = second;
+	  this.perSecond[slot] = 0;
+	}
+	this.perSecond[slot] ++;
+      }
+    }
+
+    private long second() {
+      return (System.nanoTime () - this.start) / 1000000000L + 1;
+    }
+
+    public long getCount() {
+      return this.latency.getCount ();
+    }
+
+    public long getErrors() {
+      return this.errors.get ();
+    }
+
+    /**
+     *  The rate over the last WINDOW whole seconds, or since start()
+     *  if that is more recent.
+     */
+    public double getQueriesPerSecond() {
+
+      long now = this.second ();
+      long n = 0;
+
+      synchronized (this.perSecond) {
+	for (int i = 0; i < WINDOW; i++)
+	  if ((this.seconds[i] < now) && (this.seconds[i] >= now - WINDOW))
+	    n += this.perSecond[i];
+      }
+
+      long elapsed = Math.min (WINDOW, now - 1);
+      return (elapsed > 0) ? (double) n / elapsed : 0.0;
+    }
+
+    public double getMeanQueriesPerSecond() {
+      double elapsed = (System.nanoTime () - this.start) / 1e9;
+      return (elapsed > 0) ? this.latency.getCount () / elapsed : 0.0;
+    }
+
+    public double getLatencyMeanMs() {
+      return this.latency.getMean () / 1e6;
+    }
+
+    public double getLatencyP50Ms() {
+      return this.latency.getValueAtPercentile (50.0) / 1e6;
+    }
+
+    public double getLatencyP95Ms() {
+      return this.latency.getValueAtPercentile (95.0) / 1e6;
+    }
+
+    public double getLatencyP99Ms() {
+      return this.latency.getValueAtPercentile (99.0) / 1e6;
+    }
+
+    public double getLatencyP999Ms() {
+      return this.latency.getValueAtPercentile (99.9) / 1e6;
+    }
+
+    public double getLatencyMaxMs() {
+      return this.latency.getMax () / 1e6;
+    }
+  }
+
+  /**
+   *  The number of query operators of each type that were evaluated.
+   */
+  public interface OperatorsMXBean {
+    Map<String, Long> getEvaluations();
+  }
+
+  private static class Operators implements OperatorsMXBean {
+    public Map<String, Long> getEvaluations() {
+      Map<String, Long> counts = new TreeMap<String, Long> ();
+      for (Map.Entry<String, LongAdder> e : operators.entrySet ())
+	counts.put (e.getKey (), e.getValue ().sum ());
+      return counts;
+    }
+  }
+
+  /**
+   *  Index reads.
+   */
+  public interface IndexMXBean {
+    long getInvListsRead();
+    long getPostingsDecoded();
+    long getPositionsDecoded();
+    long getPostingBytesDecoded();
+    long getTermVectorsRead();
+    long getExternalIdLookups();
+    long getStoredFieldReads();
+  }
+
+  private static class Index implements IndexMXBean {
+
+    public long getInvListsRead() {
+      return invListsRead.sum ();
+    }
+
+    public long getPostingsDecoded() {
+      return postingsDecoded.sum ();
+    }
+
+    public long getPositionsDecoded() {
+      return positionsDecoded.sum ();
+    }
+
+    public long getPostingBytesDecoded() {
+      return 4L * (2L * postingsDecoded.sum () + positionsDecoded.sum ());
+    }
+
+    public long getTermVectorsRead() {
+      return termVectorsRead.sum ();
+    }
+
+    public long getExternalIdLookups() {
+      return externalIdLookups.sum ();
+    }
+
+    public long getStoredFieldReads() {
+      return storedFieldReads.sum ();
+    }
+  }
+
+  /**
+   *  The hits and misses of a cache.
+   */
+  public interface CacheMXBean {
+    long getHits();
+    long getMisses();
+    double getHitRate();
+    int getSize();
+  }
+
+  private static abstract class Cache implements CacheMXBean {
+    public double getHitRate() {
+      long hits = this.getHits ();
+      long lookups = hits + this.getMisses ();
+      return (lookups > 0) ? (double) hits / lookups : 0.0;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/**
+ *  QryOptimizer rewrites a query tree after it is parsed and before
+ *  it is evaluated.  The rewrites remove work without changing the
+ *  results of the query:
+ *
+ *    * Arguments that match nothing (e.g., query operators whose terms
+ *      were all stopwords) are removed, along with their #WAND weights.
+ *    * #SYN, #NEAR/n and #WINDOW/n operators with one argument are
+ *      replaced by their argument, and nested #SYN operators are flattened.
+ *    * For Boolean retrieval models, where #AND and #OR take the MIN
+ *      and MAX of their arguments' scores, nested #AND (or #OR)
+ *      operators are flattened, duplicate arguments are removed, and
+ *      operators with one argument are replaced by their argument.
+ *    * The arguments of #AND and #OR are ordered by estimated
+ *      document frequency, rarest first.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.Term;
+
+public class QryOptimizer {
+
+  //  If true, the query trees before and after optimization are printed.
+
+  public static boolean debug = false;
+
+  private RetrievalModel model;
+  private Map<String, Integer> dfs = new HashMap<String, Integer>();
+
+  private QryOptimizer(RetrievalModel model) {
+    this.model = model;
+  }
+
+  /**
+   *  Optimize a query tree.
+   *  @param q The root of the query tree.  The tree may be modified.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The root of the optimized query tree.
+   *  @throws IOException
+   */
+  public static Qryop optimize(Qryop q, RetrievalModel r) throws IOException {
+
+    QryOptimizer optimizer = new QryOptimizer (r);
+    String before = debug ? q.toString() : null;
+    long postingsBefore = debug ? optimizer.countPostings (q) : 0;
+
+    Qryop result = optimizer.rewrite (q);
+
+    //  A query that matches nothing is an #OR with no arguments.
+
+    if (result == null)
+      result = new QryopSlOr ();
+
+    if (debug)
+      System.out.println ("Optimizer:  " + before + " (" + postingsBefore +
+			  " postings)  =>  " + result + " (" +
+			  optimizer.countPostings (result) + " postings)");
+
+    return result;
+  }
+
+  /**
+   *  Rewrite a query operator and its arguments.
+   *  @param q The query operator.
+   *  @return The rewritten query operator, or null if it matches nothing.
+   *  @throws IOException
+   */
+  private Qryop rewrite(Qryop q) throws IOException {
+
+    if (q instanceof QryopIlTerm)
+      return q;
+
+    boolean isBoolean = (this.model instanceof RetrievalModelUnrankedBoolean) ||
+      (this.model instanceof RetrievalModelRankedBoolean);
+    boolean isAssociative = isBoolean &&
+      ((q instanceof QryopSlAnd) || (q instanceof QryopSlOr));
+
+    //  Rewrite the arguments, dropping the ones that match nothing and
+    //  flattening the ones that can be merged into this operator.
+
+    ArrayList<Qryop> args = new ArrayList<Qryop> ();
+    double[] weights = new double[q.args.size()];	// For #WAND
+
+    for (int i = 0; i < q.args.size(); i++) {
+      Qryop newArg = this.rewrite (q.args.get(i));
+
+      if (newArg == null)
+	continue;
+
+      if (q instanceof QryopSlWAnd)
+	weights[args.size()] = ((QryopSlWAnd) q).getWeight (i);
+
+      if ((newArg.getClass() == q.getClass()) &&
+	  (isAssociative || (q instanceof QryopIlSyn)))
+	args.addAll (newArg.args);
+      else
+	args.add (newArg);
+    }
+
+    if (isAssociative) {
+      Set<String> seen = new HashSet<String> ();
+
+      for (Iterator<Qryop> i = args.iterator(); i.hasNext(); )
+	if (! seen.add (getCanonicalForm (i.next())))
+	  i.remove();
+    }
+
+    if (args.isEmpty())
+      return null;
+
+    //  Operators that just pass their argument's result through.
+
+    if ((args.size() == 1) &&
+	((q instanceof QryopIlSyn) || (q instanceof QryopIlNear) ||
+	 (q instanceof QryopIlWindow)))
+      return args.get(0);
+
+    if ((args.size() == 1) && isAssociative) {
+      Qryop arg = args.get(0);
+      return (arg instanceof QryopSl) ? arg : new QryopSlScore (arg);
+    }
+
+    //  The order of #AND and #OR arguments doesn't change the result,
+    //  so put the rarest first.
+
+    if ((q instanceof QryopSlAnd) || (q instanceof QryopSlOr)) {
+      final Map<Qryop, Long> estimates = new HashMap<Qryop, Long> ();
+
+      for (Qryop arg : args)
+	estimates.put (arg, this.estimateDf (arg));
+
+      Collections.sort (args, new Comparator<Qryop> () {
+	  public int compare(Qryop q1, Qryop q2) {
+	    return estimates.get (q1).compareTo (estimates.get (q2));
+	  }
+	});
+    }
+
+    if (q instanceof QryopSlWAnd)
+      ((QryopSlWAnd) q).setArgs (args, weights);
+    else
+      q.args = args;
+
+    return q;
+  }
+
+  /**
+   *  Estimate the number of documents that a query operator matches.
+   *  @param q The query operator.
+   *  @return The estimated document frequency.
+   *  @throws IOException
+   */
+  private long estimateDf(Qryop q) throws IOException {
+
+    if (q instanceof QryopIlTerm)
+      return this.getDf ((QryopIlTerm) q);
+
+    //  Conjunctions match no more documents than their rarest
+    //  argument; disjunctions no more than all of their arguments.
+
+    boolean isConjunction = (q instanceof QryopSlAnd) ||
+      (q instanceof QryopIlNear) || (q instanceof QryopIlWindow);
+    long df = isConjunction ? Long.MAX_VALUE : 0;
+
+    for (Qryop arg : q.args) {
+      long argDf = this.estimateDf (arg);
+      df = isConjunction ? Math.min (df, argDf) : (df + argDf);
+    }
+
+    return (df == Long.MAX_VALUE) ? 0 : df;
+  }
+
+  /**
+   *  Count the postings of the terms in a query tree.
+   */
+  private long countPostings(Qryop q) throws IOException {
+
+    if (q instanceof QryopIlTerm)
+      return this.getDf ((QryopIlTerm) q);
+
+    long postings = 0;
+
+    for (Qryop arg : q.args)
+      postings += this.countPostings (arg);
+
+    return postings;
+  }
+
+  private int getDf(QryopIlTerm q) throws IOException {
+    String key = q.toString();
+    Integer df = this.dfs.get (key);
+
+    if (df == null) {
+      df = QryEval.READER.docFreq (new Term (q.getField(), q.getTerm()));
+      this.dfs.put (key, df);
+    }
+
+    return df;
+  }
+
+  private static String getCanonicalForm(Qryop q) {
+    return (q instanceof QryopIl) ? ((QryopIl) q).getCanonicalForm() : q.toString();
+  }
+}
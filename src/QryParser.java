@@ -0,0 +1,305 @@
+/**
+ *  QryParser converts a query string into a query tree.  It makes one
+ *  pass over the characters of the query.  Operator names, #NEAR/n and
+ *  #WINDOW/n distances, and .field suffixes are recognized in place,
+ *  so the only strings that it creates are the terms that it gives to
+ *  the analyzer and the #WAND weights that it converts to numbers.
+ *
+ *  The query syntax is
+ *
+ *    query    := operator | term ...
+ *    operator := #name ( argument ... )
+ *    argument := operator | term
+ *    term     := text | text.field
+ *
+ *  where #name is #AND, #OR, #SYN, #WAND, #NEAR/n or #WINDOW/n (in any
+ *  case), and each argument of #WAND is preceded by its weight.  A
+ *  query that does not start with an operator is treated as if it
+ *  were the arguments of #OR.  Spaces, tabs, newlines and commas
+ *  separate arguments.  A syntax error is reported by throwing a
+ *  QrySyntaxException that gives its offset in the query string.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryParser {
+
+  //  The fields that a query term may name, e.g., apple.title.
+
+  private static final String[] FIELDS = { "url", "keywords", "title", "body", "inlink" };
+
+  private String query;
+  private int length;
+  private int pos = 0;
+  private ArrayList<Qryop> stack = new ArrayList<Qryop>();
+
+  private QryParser(String query) {
+    this.query = query;
+    this.length = query.length();
+  }
+
+  /**
+   *  Parse a query string.
+   *  @param query A string containing a query.
+   *  @return The query tree.
+   *  @throws QrySyntaxException if the query string is not a query.
+   *  @throws IOException
+   */
+  public static Qryop parse(String query) throws IOException {
+    return new QryParser (query).parse();
+  }
+
+  private Qryop parse() throws IOException {
+
+    this.skipDelimiters();
+
+    if (this.pos == this.length)
+      throw this.error ("Empty query", this.pos);
+
+    //  A query without an operator is the arguments of an implicit #OR
+    //  that ends at the end of the query string.
+
+    boolean implicitOr = (this.query.charAt (this.pos) != '#');
+
+    if (implicitOr)
+      this.stack.add (new QryopSlOr ());
+
+    while (true) {
+
+      this.skipDelimiters();
+
+      if (this.pos == this.length) {
+	if (implicitOr && (this.stack.size() == 1))
+	  return this.stack.get (0);
+
+	throw this.error ("Missing )", this.pos);
+      }
+
+      char c = this.query.charAt (this.pos);
+      Qryop currentOp =
+	this.stack.isEmpty() ? null : this.stack.get (this.stack.size() - 1);
+
+      if (c == ')') {
+
+	if (this.stack.isEmpty() || (implicitOr && (this.stack.size() == 1)))
+	  throw this.error ("Unmatched )", this.pos);
+
+	this.pos ++;
+	this.stack.remove (this.stack.size() - 1);
+
+	if (this.stack.isEmpty())
+	  return this.finish (currentOp);
+
+	this.stack.get (this.stack.size() - 1).add (currentOp);
+
+      } else if (c == '(') {
+	throw this.error ("Unexpected (", this.pos);
+
+      } else if ((currentOp instanceof QryopSlWAnd) &&
+		 ((QryopSlWAnd) currentOp).needsWeight()) {
+
+	//  Each argument of #WAND is preceded by its weight.
+
+	int start = this.pos;
+	int end = this.tokenEnd (start);
+
+	try {
+	  ((QryopSlWAnd) currentOp).addWeight (
+	    Double.parseDouble (this.query.substring (start, end)));
+	} catch (NumberFormatException e) {
+	  throw this.error ("Expected a weight", start);
+	}
+
+	this.pos = end;
+
+      } else if (c == '#') {
+	this.stack.add (this.parseOperator ());
+
+      } else {
+	this.parseTerm (currentOp);
+      }
+    }
+  }
+
+  /**
+   *  Check that nothing follows the top-level operator, and give a
+   *  top-level proximity operator a score.
+   */
+  private Qryop finish(Qryop root) throws IOException {
+
+    this.skipDelimiters();
+
+    if (this.pos < this.length)
+      throw this.error ("Unexpected text after the query", this.pos);
+
+    if ((root instanceof QryopIlNear) || (root instanceof QryopIlWindow)) {
+      Qryop arg = root;
+      root = new QryopSlScore ();
+      root.add (arg);
+    }
+
+    return root;
+  }
+
+  /**
+   *  Parse an operator name, its distance (if it has one), and the
+   *  ( that starts its arguments.
+   */
+  private Qryop parseOperator() throws IOException {
+
+    int start = this.pos;
+    int nameEnd = start + 1;
+
+    while ((nameEnd < this.length) && Character.isLetter (this.query.charAt (nameEnd)))
+      nameEnd ++;
+
+    Qryop op = null;
+    this.pos = nameEnd;
+
+    if (this.isName (start, nameEnd, "#and"))
+      op = new QryopSlAnd ();
+    else if (this.isName (start, nameEnd, "#or"))
+      op = new QryopSlOr ();
+    else if (this.isName (start, nameEnd, "#syn"))
+      op = new QryopIlSyn ();
+    else if (this.isName (start, nameEnd, "#wand"))
+      op = new QryopSlWAnd ();
+    else if (this.isName (start, nameEnd, "#near"))
+      op = new QryopIlNear (this.parseDistance ());
+    else if (this.isName (start, nameEnd, "#window"))
+      op = new QryopIlWindow (this.parseDistance ());
+    else
+      throw this.error ("Unknown operator " +
+			this.query.substring (start, this.tokenEnd (start)), start);
+
+    //  The operator name must be followed by (.
+
+    while ((this.pos < this.length) && isSpace (this.query.charAt (this.pos)))
+      this.pos ++;
+
+    if ((this.pos == this.length) || (this.query.charAt (this.pos) != '('))
+      throw this.error ("Expected (", this.pos);
+
+    this.pos ++;
+    return op;
+  }
+
+  /**
+   *  Parse the /n that follows #NEAR and #WINDOW.
+   */
+  private int parseDistance() throws IOException {
+
+    if ((this.pos == this.length) || (this.query.charAt (this.pos) != '/'))
+      throw this.error ("Expected /n", this.pos);
+
+    int start = ++ this.pos;
+    long distance = 0;
+
+    while ((this.pos < this.length) && (this.query.charAt (this.pos) >= '0') &&
+	   (this.query.charAt (this.pos) <= '9')) {
+      distance = 10 * distance + (this.query.charAt (this.pos) - '0');
+
+      if (distance > Integer.MAX_VALUE)
+	throw this.error ("Distance is too large", start);
+
+      this.pos ++;
+    }
+
+    if ((this.pos == start) || (distance == 0))
+      throw this.error ("Expected a positive distance", start);
+
+    return (int) distance;
+  }
+
+  /**
+   *  Parse a term and its optional .field suffix, and add it to the
+   *  current operator.  A term that the analyzer discards (e.g., a
+   *  stopword) is not added; if it is an argument of #WAND, its weight
+   *  is discarded too.
+   */
+  private void parseTerm(Qryop currentOp) throws IOException {
+
+    int start = this.pos;
+    int end = this.tokenEnd (start);
+    int termEnd = end;
+    String field = "body";	// The default field
+
+    //  A suffix that is not a known field is part of the term.
+
+    int dot = this.query.lastIndexOf ('.', end - 1);
+
+    if (dot >= start) {
+      String suffixField = this.getField (dot + 1, end);
+
+      if (suffixField != null) {
+	field = suffixField;
+	termEnd = dot;
+      }
+    }
+
+    this.pos = end;
+
+    String[] tokenized = QryEval.tokenizeQuery (this.query.substring (start, termEnd));
+
+    if (tokenized.length > 0)
+      currentOp.add (new QryopIlTerm (tokenized[0], field));
+    else if (currentOp instanceof QryopSlWAnd)
+      ((QryopSlWAnd) currentOp).removePendingWeight();
+  }
+
+  /**
+   *  Return the field named by query[start, end), ignoring case, or
+   *  null if it is not a known field.
+   */
+  private String getField(int start, int end) {
+    for (String field : FIELDS)
+      if ((field.length() == end - start) &&
+	  this.query.regionMatches (true, start, field, 0, end - start))
+	return field;
+
+    return null;
+  }
+
+  /**
+   *  Check whether query[start, end) is an operator name, ignoring case.
+   */
+  private boolean isName(int start, int end, String name) {
+    return ((name.length() == end - start) &&
+	    this.query.regionMatches (true, start, name, 0, end - start));
+  }
+
+  /**
+   *  Return the offset of the end of the token that starts at start.
+   */
+  private int tokenEnd(int start) {
+    int end = start;
+
+    while (end < this.length) {
+      char c = this.query.charAt (end);
+
+      if (isSpace (c) || (c == ',') || (c == '(') || (c == ')'))
+	break;
+
+      end ++;
+    }
+
+    return end;
+  }
+
+  private void skipDelimiters() {
+    while ((this.pos < this.length) &&
+	   (isSpace (this.query.charAt (this.pos)) || (this.query.charAt (this.pos) == ',')))
+      this.pos ++;
+  }
+
+  private static boolean isSpace(char c) {
+    return ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r'));
+  }
+
+  private QrySyntaxException error(String problem, int offset) {
+    return new QrySyntaxException (problem, this.query, offset);
+  }
+}
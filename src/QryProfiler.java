@@ -0,0 +1,349 @@
+/**
+ *  QryProfiler shows where the time of a query goes (EXPLAIN ANALYZE).
+ *  instrument() wraps every node of a query tree in a profiling node
+ *  that passes calls to the real node and measures them.  After the
+ *  tree is evaluated, explain() prints it with, for each node:
+ *
+ *    time      Wall time in the node and its arguments (ms)
+ *    self      Wall time in the node, not counting its arguments (ms)
+ *    alloc     Bytes allocated by the node and its arguments
+ *    out       The number of documents that the node produced
+ *    df, ctf   The length of the node's inverted list (QryopIl nodes)
+ *    postings  Documents read through the node's cursor, if its parent
+ *              read it with a cursor instead of evaluating it
+ *    positions Positions read through the node's cursor
+ *
+ *  Every cursor call is timed, so a profiled query is slower than an
+ *  unprofiled one; the numbers are for comparing nodes, not for
+ *  measuring latency.  Allocation is measured around evaluate and
+ *  cursor, so bytes allocated while a cursor is read are counted by
+ *  the node that reads it.  Profiling nodes forward getScoredInvList,
+ *  so #AND still reads the inverted lists of its #SCORE arguments
+ *  through cursors, as it does without profiling; those #SCORE nodes
+ *  are not evaluated and show calls=0.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+public class QryProfiler {
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean ();
+
+  /**
+   *  The measurements of one node.
+   */
+  private static class Profile {
+    Qryop op;
+    List<Profile> children = new ArrayList<Profile> ();
+    int calls = 0;
+    long nanos = 0;
+    long allocated = 0;
+    long out = 0;
+    long df = -1;
+    long ctf = -1;
+    boolean streamed = false;
+    long postings = 0;
+    long positions = 0;
+  }
+
+  /**
+   *  Wrap every node of a query tree in a profiling node.  The tree's
+   *  argument lists are changed in place.
+   *  @param q The root of the query tree.
+   *  @return The root of the profiled query tree.
+   */
+  public static Qryop instrument(Qryop q) {
+
+    Profile profile = new Profile ();
+    profile.op = q;
+
+    for (int i = 0; i < q.args.size (); i++) {
+      Qryop arg = instrument (q.args.get (i));
+      q.args.set (i, arg);
+      profile.children.add (getProfile (arg));
+    }
+
+    if (q instanceof QryopIl)
+      return new ProfiledIl ((QryopIl) q, profile);
+    else
+      return new ProfiledSl ((QryopSl) q, profile);
+  }
+
+  /**
+   *  Print the measurements of a profiled query tree that has been
+   *  evaluated.
+   *  @param q The root of a query tree made by instrument.
+   *  @return One line per node; arguments are indented below their
+   *    operator.
+   */
+  public static String explain(Qryop q) {
+    StringBuilder s = new StringBuilder ();
+    explain (getProfile (q), 0, s);
+    return s.toString ();
+  }
+
+  private static void explain(Profile p, int depth, StringBuilder s) {
+
+    long childNanos = 0;
+    long childAllocated = 0;
+
+    for (Profile child : p.children) {
+      childNanos += child.nanos;
+      childAllocated += child.allocated;
+    }
+
+    for (int i = 0; i < depth; i++)
+      s.append ("  ");
+
+    s.append (getName (p.op));
+    s.append (String.format (Locale.ROOT, "  time=%.3fms self=%.3fms",
+			     p.nanos / 1e6, Math.max (0, p.nanos - childNanos) / 1e6));
+    s.append ("  alloc=").append (bytes (p.allocated))
+      .append (" (self ").append (bytes (Math.max (0, p.allocated - childAllocated))).append (")");
+    s.append ("  calls=").append (p.calls);
+
+    if (p.streamed)
+      s.append ("  postings=").append (p.postings).append (" positions=").append (p.positions);
+    else
+      s.append ("  out=").append (p.out);
+
+    if (p.df >= 0)
+      s.append ("  df=").append (p.df);
+    if (p.ctf >= 0)
+      s.append (" ctf=").append (p.ctf);
+
+    s.append ("\n");
+
+    for (Profile child : p.children)
+      explain (child, depth + 1, s);
+  }
+
+  /**
+   *  The name of a node:  the operator without its arguments, or the
+   *  term and field.
+   */
+  private static String getName(Qryop op) {
+    String s = op.toString ();
+    int paren = s.indexOf ('(');
+    return ((s.startsWith ("#") && (paren > 0)) ? s.substring (0, paren) : s).trim ();
+  }
+
+  private static String bytes(long n) {
+    if (n < 1024)
+      return n + "B";
+    else if (n < 1024 * 1024)
+      return String.format (Locale.ROOT, "%.1fKB", n / 1024.0);
+    else
+      return String.format (Locale.ROOT, "%.1fMB", n / (1024.0 * 1024.0));
+  }
+
+  private static Profile getProfile(Qryop q) {
+    return (q instanceof ProfiledIl) ? ((ProfiledIl) q).profile : ((ProfiledSl) q).profile;
+  }
+
+  /**
+   *  Get the number of bytes that the current thread has allocated,
+   *  or 0 if the JVM does not count them.
+   */
+  private static long allocatedBytes() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) THREADS)
+	.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+
+    return 0;
+  }
+
+  /**
+   *  Record the result of a call to evaluate.
+   */
+  private static void record(Profile p, QryResult result, long start, long allocated) {
+    p.nanos += System.nanoTime () - start;
+    p.allocated += allocatedBytes () - allocated;
+    p.calls ++;
+    p.out = Math.max (result.docScores.size (), result.invertedList.df);
+
+    if (p.op instanceof QryopIl) {
+      p.df = result.invertedList.df;
+      p.ctf = result.invertedList.ctf;
+    }
+  }
+
+  /**
+   *  A profiling node for a query operator that produces an inverted
+   *  list.
+   */
+  private static class ProfiledIl extends QryopIl {
+
+    private final QryopIl op;
+    private final Profile profile;
+
+    ProfiledIl(QryopIl op, Profile profile) {
+      this.op = op;
+      this.profile = profile;
+      this.args = op.args;
+    }
+
+    public void add(Qryop q) throws IOException {
+      this.op.add (q);
+    }
+
+    public List<DaaTPtr> allocDaaTPtrs(RetrievalModel r) throws IOException {
+      return this.op.allocDaaTPtrs (r);
+    }
+
+    public QryResult evaluate(RetrievalModel r) throws IOException {
+      long allocated = allocatedBytes ();
+      long start = System.nanoTime ();
+      QryResult result = this.op.evaluate (r);
+      record (this.profile, result, start, allocated);
+      return result;
+    }
+
+    public InvListCursor cursor(RetrievalModel r) throws IOException {
+      long allocated = allocatedBytes ();
+      long start = System.nanoTime ();
+      InvListCursor cursor = this.op.cursor (r);
+
+      this.profile.nanos += System.nanoTime () - start;
+      this.profile.allocated += allocatedBytes () - allocated;
+      this.profile.calls ++;
+      this.profile.streamed = true;
+      this.profile.df = cursor.df ();
+      this.profile.ctf = cursor.ctf ();
+
+      return new ProfiledCursor (cursor, this.profile);
+    }
+
+    public String getField() {
+      return this.op.getField ();
+    }
+
+    public long getCtf(RetrievalModel r) throws IOException {
+      return this.op.getCtf (r);
+    }
+
+    public String getCanonicalForm() {
+      return this.op.getCanonicalForm ();
+    }
+
+    public String toString() {
+      return this.op.toString ();
+    }
+  }
+
+  /**
+   *  A profiling node for a query operator that produces a score list.
+   */
+  private static class ProfiledSl extends QryopSl {
+
+    private final QryopSl op;
+    private final Profile profile;
+
+    ProfiledSl(QryopSl op, Profile profile) {
+      this.op = op;
+      this.profile = profile;
+      this.args = op.args;
+    }
+
+    public void add(Qryop q) throws IOException {
+      this.op.add (q);
+    }
+
+    public List<DaaTPtr> allocDaaTPtrs(RetrievalModel r) throws IOException {
+      return this.op.allocDaaTPtrs (r);
+    }
+
+    public QryResult evaluate(RetrievalModel r) throws IOException {
+      long allocated = allocatedBytes ();
+      long start = System.nanoTime ();
+      QryResult result = this.op.evaluate (r);
+      record (this.profile, result, start, allocated);
+      return result;
+    }
+
+    protected double combineScores(RetrievalModel r, double[] scores) {
+      return this.op.combineScores (r, scores);
+    }
+
+    public QryopIl getScoredInvList() {
+      return this.op.getScoredInvList ();
+    }
+
+    public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+      return this.op.getDefaultScore (r, docid);
+    }
+
+    public String toString() {
+      return this.op.toString ();
+    }
+  }
+
+  /**
+   *  A cursor that counts and times the postings and positions that
+   *  are read through it.
+   */
+  private static class ProfiledCursor extends InvListCursor {
+
+    private final InvListCursor cursor;
+    private final Profile profile;
+
+    ProfiledCursor(InvListCursor cursor, Profile profile) {
+      this.cursor = cursor;
+      this.profile = profile;
+      this.field = cursor.field;
+    }
+
+    public int docID() {
+      return this.cursor.docID ();
+    }
+
+    public int nextDoc() throws IOException {
+      long start = System.nanoTime ();
+      int docid = this.cursor.nextDoc ();
+      this.count (docid, start);
+      return docid;
+    }
+
+    public int advance(int target) throws IOException {
+      long start = System.nanoTime ();
+      int docid = this.cursor.advance (target);
+      this.count (docid, start);
+      return docid;
+    }
+
+    private void count(int docid, long start) {
+      this.profile.nanos += System.nanoTime () - start;
+
+      if (docid != NO_MORE_DOCS)
+	this.profile.postings ++;
+    }
+
+    public int freq() throws IOException {
+      return this.cursor.freq ();
+    }
+
+    public int[] positions() throws IOException {
+      long start = System.nanoTime ();
+      int[] positions = this.cursor.positions ();
+      this.profile.nanos += System.nanoTime () - start;
+      this.profile.positions += this.cursor.freq ();
+      return positions;
+    }
+
+    public int positionsOffset() {
+      return this.cursor.positionsOffset ();
+    }
+
+    public int df() {
+      return this.cursor.df ();
+    }
+
+    public long ctf() throws IOException {
+      return this.cursor.ctf ();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/**
+ *  QryReplay times the evaluation of a query file.  The queries are
+ *  run for replayWarmup iterations that are not measured and then for
+ *  replayIterations iterations that are.  By default each thread
+ *  starts its next query as soon as it finishes the last one (a closed
+ *  loop).  If replayRate is set, queries arrive at that many per second
+ *  whether or not earlier queries have finished (an open loop), and
+ *  latency is measured from a query's scheduled arrival, so time that
+ *  it spends waiting for a thread is counted.
+ *
+ *  The report is JSON:  throughput (QPS) overall and per iteration,
+ *  the mean, p50, p95, p99, p99.9 and maximum of the latency and of
+ *  the service time (evaluation only) in milliseconds, and the bytes
+ *  allocated per query.  It is printed, and it is written to
+ *  replayOutputPath if that is set.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class QryReplay {
+
+  private int numThreads;
+  private int warmup = 1;
+  private int iterations = 3;
+  private double rate = 0.0;
+  private String outputPath = null;
+
+  private LatencyHistogram latency = new LatencyHistogram ();
+  private LatencyHistogram serviceTime = new LatencyHistogram ();
+  private AtomicLong allocated = new AtomicLong ();
+  private List<Double> iterationQps = new ArrayList<Double> ();
+  private long measuredQueries = 0;
+  private long measuredNanos = 0;
+  private int numQueries = 0;
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean ();
+
+  /**
+   *  Constructor.
+   *  @param numThreads The number of queries that are evaluated at
+   *    the same time.
+   */
+  public QryReplay(int numThreads) {
+    this.numThreads = Math.max (1, numThreads);
+  }
+
+  /**
+   *  Set a replay parameter:  replayWarmup, replayIterations,
+   *  replayRate (queries per second; 0 for a closed loop), or
+   *  replayOutputPath.
+   *  @param name The name of the parameter.
+   *  @param value The parameter's value.
+   *  @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter(String name, String value) {
+
+    try {
+      if (name.equals ("replayWarmup") && (Integer.parseInt (value) >= 0))
+	this.warmup = Integer.parseInt (value);
+      else if (name.equals ("replayIterations") && (Integer.parseInt (value) > 0))
+	this.iterations = Integer.parseInt (value);
+      else if (name.equals ("replayRate") && (Double.parseDouble (value) >= 0.0))
+	this.rate = Double.parseDouble (value);
+      else if (name.equals ("replayOutputPath"))
+	this.outputPath = value;
+      else
+	return false;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Replay the queries and write the report.
+   *  @param queries Query file lines in the format queryId:query.
+   *  @param model The retrieval model.
+   *  @throws Exception
+   */
+  public void run(List<String> queries, RetrievalModel model) throws Exception {
+
+    ExecutorService pool = Executors.newFixedThreadPool (this.numThreads);
+    this.numQueries = queries.size ();
+
+    try {
+      for (int i = 0; i < this.warmup; i++)
+	this.iteration (queries, model, pool, false);
+
+      for (int i = 0; i < this.iterations; i++)
+	this.iteration (queries, model, pool, true);
+    } finally {
+      pool.shutdownNow ();
+    }
+
+    if (this.outputPath != null) {
+      BufferedWriter writer = new BufferedWriter (new FileWriter (this.outputPath));
+      try {
+	writer.write (this.toString ());
+	writer.newLine ();
+      } finally {
+	writer.close ();
+      }
+    }
+  }
+
+  /**
+   *  Run every query once.
+   *  @param measure If true, record the latencies of the queries.
+   */
+  private void iteration(List<String> queries, final RetrievalModel model,
+			 ExecutorService pool, final boolean measure) throws Exception {
+
+    List<Future<String>> results = new ArrayList<Future<String>> ();
+    final boolean openLoop = (this.rate > 0.0);
+    long start = System.nanoTime ();
+
+    for (int i = 0; i < queries.size (); i++) {
+
+      final String query = queries.get (i);
+      final long arrival = openLoop ?
+	start + (long) (i * 1e9 / this.rate) : 0;
+
+      //  In an open loop, wait for the query's arrival time.  nanoTime
+      //  values may be negative or wrap, so only their differences are
+      //  compared.
+
+      if (openLoop)
+	for (long now = System.nanoTime (); now - arrival < 0; now = System.nanoTime ())
+	  LockSupport.parkNanos (arrival - now);
+
+      results.add (pool.submit (new Callable<String> () {
+	  public String call() throws Exception {
+	    long thread = Thread.currentThread ().getId ();
+	    long allocatedBefore = allocatedBytes (thread);
+	    long begin = System.nanoTime ();
+
+	    String lines = QryEval.evaluateQuery (query, model);
+
+	    long end = System.nanoTime ();
+
+	    if (measure) {
+	      serviceTime.record (end - begin);
+	      latency.record (end - (openLoop ? arrival : begin));
+	      allocated.addAndGet (allocatedBytes (thread) - allocatedBefore);
+	    }
+
+	    return lines;
+	  }
+	}));
+    }
+
+    for (Future<String> result : results) {
+      try {
+	result.get ();
+      } catch (ExecutionException e) {
+	if (e.getCause () instanceof Exception)
+	  throw (Exception) e.getCause ();
+	throw e;
+      }
+    }
+
+    long elapsed = System.nanoTime () - start;
+
+    if (measure) {
+      this.measuredQueries += queries.size ();
+      this.measuredNanos += elapsed;
+      this.iterationQps.add (queries.size () / (elapsed / 1e9));
+    }
+  }
+
+  /**
+   *  Get the number of bytes that a thread has allocated, or 0 if the
+   *  JVM does not count them.
+   */
+  private static long allocatedBytes(long thread) {
+    if (THREADS instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes (thread);
+
+    return 0;
+  }
+
+  /**
+   *  Return the report as JSON.
+   */
+  public String toString() {
+
+    StringBuilder json = new StringBuilder ();
+    double qps = (this.measuredNanos > 0) ?
+      this.measuredQueries / (this.measuredNanos / 1e9) : 0.0;
+
+    json.append ("{\n");
+    json.append ("  \"queries\": ").append (this.numQueries).append (",\n");
+    json.append ("  \"threads\": ").append (this.numThreads).append (",\n");
+    json.append ("  \"warmupIterations\": ").append (this.warmup).append (",\n");
+    json.append ("  \"iterations\": ").append (this.iterations).append (",\n");
+    json.append ("  \"arrivalRate\": ").append (number (this.rate)).append (",\n");
+    json.append ("  \"qps\": ").append (number (qps)).append (",\n");
+    json.append ("  \"iterationQps\": [");
+    for (int i = 0; i < this.iterationQps.size (); i++)
+      json.append ((i > 0) ? ", " : "").append (number (this.iterationQps.get (i)));
+    json.append ("],\n");
+    json.append ("  \"latencyMs\": ").append (summary (this.latency)).append (",\n");
+    json.append ("  \"serviceTimeMs\": ").append (summary (this.serviceTime)).append (",\n");
+    json.append ("  \"allocatedBytesPerQuery\": ")
+      .append (number ((this.measuredQueries > 0) ?
+		       (double) this.allocated.get () / this.measuredQueries : 0.0))
+      .append ("\n");
+    json.append ("}");
+
+    return json.toString ();
+  }
+
+  private static String summary(LatencyHistogram h) {
+    return ("{\"count\": " + h.getCount () +
+	    ", \"mean\": " + number (h.getMean () / 1e6) +
+	    ", \"p50\": " + number (h.getValueAtPercentile (50.0) / 1e6) +
+	    ", \"p95\": " + number (h.getValueAtPercentile (95.0) / 1e6) +
+	    ", \"p99\": " + number (h.getValueAtPercentile (99.0) / 1e6) +
+	    ", \"p999\": " + number (h.getValueAtPercentile (99.9) / 1e6) +
+	    ", \"max\": " + number (h.getMax () / 1e6) + "}");
+  }
+
+  private static String number(double x) {
+    return String.format (Locale.ROOT, "%.3f", x);
+  }
+}
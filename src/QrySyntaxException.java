@@ -0,0 +1,37 @@
+/**
+ *  A QrySyntaxException reports a query that QryParser cannot parse.
+ *  It records where in the query string the problem was found.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class QrySyntaxException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private String query;
+  private int offset;
+
+  /**
+   *  Constructor.
+   *  @param problem A description of the problem.
+   *  @param query The query string.
+   *  @param offset The offset in the query string where the problem
+   *    was found.
+   */
+  public QrySyntaxException(String problem, String query, int offset) {
+    super ("Error:  " + problem + " at offset " + offset + " in " + query);
+    this.query = query;
+    this.offset = offset;
+  }
+
+  public String getQuery() {
+    return this.query;
+  }
+
+  public int getOffset() {
+    return this.offset;
+  }
+}
@@ -20,14 +20,15 @@ public abstract class Qryop {
   protected class DaaTPtr {
     protected ScoreList scoreList;	// A qry arg's score list (if any)
     protected InvList invList;		// A qry arg's inverted list (if any)
+    protected InvListCursor cursor;	// A qry arg's inverted list cursor (if any)
     protected int nextDoc;		// The next document to examine
   };
 
-  //  Initially the query operator starts with no arguments and no
-  //  DaaTPtrs.
+  //  Initially the query operator starts with no arguments.  DaaTPtrs
+  //  are allocated for each evaluation and are not stored in the query
+  //  operator, so a query tree can be evaluated by several threads.
 
   protected ArrayList<Qryop> args = new ArrayList<Qryop>();
-  protected List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
   
   /**
    *  Appends an argument to the list of query operator arguments.  This
@@ -45,7 +46,7 @@ public abstract class Qryop {
    *  @return The daatPtrs.  
    *  @throws IOException
    */
-  public abstract void allocDaaTPtrs (RetrievalModel r) throws IOException;
+  public abstract List<DaaTPtr> allocDaaTPtrs (RetrievalModel r) throws IOException;
 
   /**
    *  Evaluates the query operator, including any child operators and
@@ -56,14 +57,6 @@ public abstract class Qryop {
    */
   public abstract QryResult evaluate(RetrievalModel r) throws IOException;
 
-  /**
-   *  Free this operator's DaaT pointers.
-   *  @return void
-   */
-  public void freeDaaTPtrs () {
-    this.daatPtrs = new ArrayList<DaaTPtr>();
-  }
-
   /**
    *  Removes an argument from the list of query operator arguments.
    *  This simplifies the design of some query parsing architectures.
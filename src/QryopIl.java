@@ -14,23 +14,177 @@ import java.util.*;
 
 public abstract class QryopIl extends Qryop {
 
+  //  Inverted lists produced by expensive query operators (e.g., #NEAR/n
+  //  and #SYN), shared across queries, or null if they are not cached.
+
+  public static InvListCache resultCache = null;
+
+  //  The collection term frequency of this query operator's inverted
+  //  list, or -1 if it is not known yet.  It depends only on the
+  //  index, so threads that race to set it set the same value.
+
+  private volatile long ctf = -1;
+
   /**
    *  Use the specified retrieval model to evaluate the query arguments.
    *  Define and return DaaT pointers that the query operator can use.
+   *  Each argument is accessed through a cursor, so arguments that
+   *  can stream their inverted lists are not materialized.
    *  @param r A retrieval model that controls how the operator behaves.
-   *  @return void
+   *  @return The daatPtrs.
    *  @throws IOException
    */
-  public void allocDaaTPtrs (RetrievalModel r) throws IOException {
+  public List<DaaTPtr> allocDaaTPtrs (RetrievalModel r) throws IOException {
+
+    List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
 
     for (int i=0; i<this.args.size(); i++) {
+
+      if (! (this.args.get(i) instanceof QryopIl))
+	QryEval.fatalError ("Error:  Invalid argument in " +
+			    this.toString());
+
       DaaTPtr ptri = new DaaTPtr ();
-      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.cursor = ((QryopIl) this.args.get(i)).cursor(r);
+      ptri.invList = null;
       ptri.scoreList = null;
       ptri.nextDoc = 0;
 	
-      this.daatPtrs.add (ptri);
+      daatPtrs.add (ptri);
     }
+
+    return daatPtrs;
+  }
+
+  /**
+   *  Evaluate the query operator and return a cursor over its
+   *  inverted list.  Operators that can produce their inverted list
+   *  incrementally override this method.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return A cursor that is positioned before the first document.
+   *  @throws IOException
+   */
+  public InvListCursor cursor (RetrievalModel r) throws IOException {
+    return this.evaluate(r).invertedList.cursor();
+  }
+
+  /**
+   *  Get the field that this query operator's inverted list is in.
+   *  All arguments must be in the same field, so it is the field of
+   *  the first argument.
+   *  @return The field name.
+   */
+  public String getField () {
+    return ((QryopIl) this.args.get(0)).getField();
+  }
+
+  /**
+   *  Get the collection term frequency of this query operator's
+   *  inverted list.  Ranked retrieval models need it to calculate
+   *  default scores.  It is remembered when the query operator is
+   *  evaluated; otherwise the query operator is evaluated to find it.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The ctf.
+   *  @throws IOException
+   */
+  public long getCtf (RetrievalModel r) throws IOException {
+
+    if (this.ctf < 0)
+      this.ctf = this.evaluate(r).invertedList.ctf;
+
+    return this.ctf;
+  }
+
+  /**
+   *  Advance the cursors of all arguments to the first document, at or
+   *  after target, that all of them contain.  The first cursor leads;
+   *  the others are moved with advance, which uses the index skip
+   *  data, and when one of them overshoots, the first cursor jumps
+   *  ahead to it.  Positional operators such as #NEAR/n and #WINDOW/n
+   *  use this to align their arguments before examining positions.
+   *  @param daatPtrs The DaaTPtrs of the query arguments.
+   *  @param target The smallest acceptable document id.
+   *  @return The document id, or InvListCursor.NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  protected static int nextCommonDoc (List<DaaTPtr> daatPtrs, int target)
+    throws IOException {
+
+    InvListCursor cursor0 = daatPtrs.get(0).cursor;
+    int docid = cursor0.docID();
+
+    if (docid < target)
+      docid = cursor0.advance (target);
+
+    EVALUATEDOCUMENTS:
+    while (docid != InvListCursor.NO_MORE_DOCS) {
+
+      for (int i=1; i<daatPtrs.size(); i++) {
+	InvListCursor cursori = daatPtrs.get(i).cursor;
+	int iDocid = cursori.docID();
+
+	if (iDocid < docid)
+	  iDocid = cursori.advance (docid);
+
+	if (iDocid == InvListCursor.NO_MORE_DOCS)
+	  return InvListCursor.NO_MORE_DOCS;	// No more docs can match
+	else if (iDocid > docid) {
+	  docid = cursor0.advance (iDocid);	// The docid can't match.
+	  continue EVALUATEDOCUMENTS;
+	}
+      }
+
+      return docid;
+    }
+
+    return InvListCursor.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return a string that identifies the inverted list that this query
+   *  operator produces.  Query operators that produce the same
+   *  inverted list for any arguments order override this method so
+   *  that equivalent query operators have the same canonical form.
+   *  @return The canonical form of this query operator.
+   */
+  public String getCanonicalForm () {
+    return this.toString();
+  }
+
+  /**
+   *  Get this query operator's result from the result cache.
+   *  @return The cached result, or null if it is not cached.
+   */
+  protected QryResult getCachedResult () {
+
+    if (resultCache == null)
+      return null;
+
+    InvList list = resultCache.get (this.getCanonicalForm());
+
+    if (list == null)
+      return null;
+
+    this.ctf = list.ctf;
+
+    QryResult result = new QryResult ();
+    result.invertedList = list.share();
+    return result;
+  }
+
+  /**
+   *  Offer this query operator's result to the result cache.  The cache
+   *  keeps a shared copy, so the caller may still modify the result.
+   *  This is called with every result that is calculated, so it is
+   *  also where the result's ctf is remembered.
+   *  @param result The result of evaluating this query operator.
+   */
+  protected void cacheResult (QryResult result) {
+
+    this.ctf = result.invertedList.ctf;
+
+    if (resultCache != null)
+      resultCache.put (this.getCanonicalForm(), result.invertedList.share());
   }
 
 }
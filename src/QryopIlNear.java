@@ -43,79 +43,163 @@ public class QryopIlNear extends QryopIl {
 	 */
 	public QryResult evaluate(RetrievalModel r) throws IOException {
 
+		QryResult result = getCachedResult ();
+
+		if (result == null) {
+			result = evaluateNear (r);
+			cacheResult (result);
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Evaluates the query operator, including any child operators and
+	 *  returns the result, without using the result cache.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The result of evaluating the query.
+	 *  @throws IOException
+	 */
+	public QryResult evaluateNear(RetrievalModel r) throws IOException {
+
 		//  Initialization
 
-		allocDaaTPtrs (r);
-		syntaxCheckArgResults (this.daatPtrs);
+		List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
+		syntaxCheckArgResults (daatPtrs);
 
-		QryResult qryResult = new QryResult ();		
-		qryResult.invertedList = this.daatPtrs.get(0).invList;
+		QryResult qryResult = new QryResult ();
+		qryResult.invertedList.field = new String (daatPtrs.get(0).cursor.field);
 
 		/*
-		 * For each pass, compare neighbor two words. 
-		 * If satisfy the NEAR requirement, record the position of the later word and go to next round.
+		 * Documents are matched one at a time: the cursors of all arguments are
+		 * advanced to the same document before any positions are examined.
+		 * Within the document, one pass over the positions of all arguments
+		 * finds the matches (see PositionMatcher).
 		 */
-		
-		for (int i = 1; i < args.size(); i++) {
-			QryResult iResult = new QryResult ();
-			iResult.invertedList = this.daatPtrs.get(i).invList;
-
-			int qCurDoc = 0;
-			int iCurDoc = 0;
-			QryResult tempResult = new QryResult();
-			
-			// Go through inverted lists of both terms to see if there is a match of documents
-			while (qCurDoc < qryResult.invertedList.df && iCurDoc < iResult.invertedList.df) {
-				int qCurDocId = qryResult.invertedList.postings.get(qCurDoc).docid;
-				int iCurDocId = iResult.invertedList.postings.get(iCurDoc).docid;
-				if (qCurDocId < iCurDocId) {
-					qCurDoc++;
-				} else if (qCurDocId > iCurDocId) {
-					iCurDoc++;
-				} else { // same document matched
-					int qCurPos = 0;
-					int iCurPos = 0;
-
-					InvList.DocPosting qPosting = qryResult.invertedList.postings.get(qCurDoc);
-					InvList.DocPosting iPosting = iResult.invertedList.postings.get(iCurDoc);
-					InvList tmpInv = new InvList();
-					InvList.DocPosting tmpPosting = tmpInv.new DocPosting(qPosting.docid);
-
-					// Go through position vector of both vectors to see if there are positions 
-					// Satisfy the neighbor requirement 
-					while (qCurPos < qPosting.tf && iCurPos < iPosting.tf) {
-						if (qPosting.positions.get(qCurPos) + this.distance < iPosting.positions.get(iCurPos)) {
-							qCurPos++;
-						} else if (qPosting.positions.get(qCurPos) > iPosting.positions.get(iCurPos)) {
-							iCurPos++;
-						} else { // position matched
-							tmpPosting.positions.add(iPosting.positions.get(iCurPos));
-							tmpPosting.tf++;
-							iCurPos++;
-							qCurPos++;
-						}
-					}
-					
-					// if theres is a match in both doc and position
-					if (tmpPosting.tf != 0) {
-						tempResult.invertedList.appendPosting(tmpPosting.docid, tmpPosting.positions);
-					}
 
-					iCurDoc++;
-					qCurDoc++;
+		int[] matches = new int[16];		// Matching positions in the current document; reused.
+		PositionMatcher matcher = new PositionMatcher(daatPtrs.size(), this.distance);
+		int docid = nextCommonDoc(daatPtrs, 0);
+
+		while (docid != InvListCursor.NO_MORE_DOCS) {
+
+			// same document matched
+			matcher.reset(daatPtrs);
+
+			int tf = 0;
+			int position;
+
+			while ((position = matcher.next()) >= 0) {
+				if (tf == matches.length) {
+					matches = Arrays.copyOf(matches, 2 * tf);
 				}
+				matches[tf++] = position;
 			}
 
-			qryResult = tempResult;
-			qryResult.invertedList.field = this.daatPtrs.get(i).invList.field;
+			// if theres is a match in both doc and position
+			if (tf != 0) {
+				qryResult.invertedList.appendPosting(docid, matches, 0, tf);
+			}
 
+			docid = nextCommonDoc(daatPtrs, docid + 1);
 		}
 
-		freeDaaTPtrs();
-
 		return qryResult;
 	}
 
+	/**
+	 *  PositionMatcher finds the #NEAR/n matches in one document.  Each
+	 *  argument must occur after the previous argument and within n
+	 *  positions of it; the position of the last argument is recorded.
+	 *
+	 *  Conceptually the arguments are matched pairwise: the first two
+	 *  arguments are matched, the matching positions of the second
+	 *  argument are matched with the third argument, and so on.  Each
+	 *  pairwise match is a merge that only moves forward, so instead of
+	 *  materializing the intermediate matches, the stages are chained:
+	 *  stage k pulls the next match of stage k-1 when it needs one.
+	 *  This makes one pass over the positions of all arguments, with one
+	 *  position pointer per argument, and allocates nothing per document.
+	 */
+	private static class PositionMatcher {
+
+		private int distance;
+		private int[][] positions;	// Positions arrays of the current document.
+		private int[] pointer;		// The next position to examine, per argument.
+		private int[] end;
+		private int[] previous;		// The last position taken from the previous stage.
+		private boolean[] needPrevious;
+
+		PositionMatcher(int numArgs, int distance) {
+			this.distance = distance;
+			this.positions = new int[numArgs][];
+			this.pointer = new int[numArgs];
+			this.end = new int[numArgs];
+			this.previous = new int[numArgs];
+			this.needPrevious = new boolean[numArgs];
+		}
+
+		/**
+		 *  Prepare to match the document that all of the cursors are on.
+		 *  @param daatPtrs The DaaTPtrs of the query arguments.
+		 *  @throws IOException
+		 */
+		void reset(List<DaaTPtr> daatPtrs) throws IOException {
+			for (int i = 0; i < daatPtrs.size(); i++) {
+				InvListCursor cursori = daatPtrs.get(i).cursor;
+				this.positions[i] = cursori.positions();
+				this.pointer[i] = cursori.positionsOffset();
+				this.end[i] = this.pointer[i] + cursori.freq();
+				this.needPrevious[i] = true;
+			}
+		}
+
+		/**
+		 *  Find the next match in the document.
+		 *  @return The position of the last argument, or -1 if there are no more matches.
+		 */
+		int next() {
+			return next(this.positions.length - 1);
+		}
+
+		/**
+		 *  Find the next match of the first k+1 arguments.
+		 *  @return The position of argument k, or -1 if there are no more matches.
+		 */
+		private int next(int k) {
+
+			if (k == 0) {
+				return (this.pointer[0] < this.end[0]) ? this.positions[0][this.pointer[0]++] : -1;
+			}
+
+			while (true) {
+				if (this.needPrevious[k]) {
+					this.previous[k] = next(k - 1);
+					if (this.previous[k] < 0) {
+						return -1;
+					}
+					this.needPrevious[k] = false;
+				}
+
+				if (this.pointer[k] >= this.end[k]) {
+					return -1;
+				}
+
+				int position = this.positions[k][this.pointer[k]];
+
+				if (this.previous[k] + this.distance < position) {
+					this.needPrevious[k] = true;	// Too far; try the previous stage's next match.
+				} else if (this.previous[k] > position) {
+					this.pointer[k]++;			// Not yet after the previous argument.
+				} else { // position matched
+					this.pointer[k]++;
+					this.needPrevious[k] = true;
+					return position;
+				}
+			}
+		}
+	}
+
 	/**
 	 *  syntaxCheckArgResults does syntax checking that can only be done
 	 *  after query arguments are evaluated.
@@ -131,7 +215,7 @@ public class QryopIlNear extends QryopIl {
 						this.toString());
 			else
 				if ((i>0) &&
-						(! ptrs.get(i).invList.field.equals (ptrs.get(0).invList.field)))
+						(! ptrs.get(i).cursor.field.equals (ptrs.get(0).cursor.field)))
 					QryEval.fatalError ("Error:  Arguments must be in the same field:  " +
 							this.toString());
 		}
@@ -139,6 +223,25 @@ public class QryopIlNear extends QryopIl {
 		return true;
 	}
 
+	/**
+	 *  Return the canonical form of this query operator.  The order of
+	 *  the arguments matters, but nested arguments may have their own
+	 *  canonical forms.
+	 *  @return The canonical form of this query operator.
+	 */
+	public String getCanonicalForm () {
+
+		String result = new String ();
+
+		for (Iterator<Qryop> i = this.args.iterator(); i.hasNext(); ) {
+			Qryop arg = i.next();
+			result += (((arg instanceof QryopIl) ?
+					((QryopIl) arg).getCanonicalForm() : arg.toString()) + " ");
+		}
+
+		return ("#NEAR/" + String.valueOf(this.distance) + "( " + result + ")");
+	}
+
 	/*
 	 *  Return a string version of this query operator.  
 	 *  @return The string version of this query operator.
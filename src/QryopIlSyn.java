@@ -42,75 +42,240 @@ public class QryopIlSyn extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    QryResult result = getCachedResult ();
+
+    if (result == null) {
+      result = evaluateSyn (r);
+      cacheResult (result);
+    }
+
+    return result;
+  }
+
+  /**
+   *  Evaluates the query operator, including any child operators and
+   *  returns the result, without using the result cache.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluateSyn(RetrievalModel r) throws IOException {
+
     //  Initialization
 
-    allocDaaTPtrs (r);
-    syntaxCheckArgResults (this.daatPtrs);
+    List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
+    syntaxCheckArgResults (daatPtrs);
 
     QryResult result = new QryResult ();
-    result.invertedList.field = new String (this.daatPtrs.get(0).invList.field);
+    result.invertedList.field = new String (daatPtrs.get(0).cursor.field);
 
-    //  Each pass of the loop adds 1 document to result until all of
-    //  the inverted lists are depleted.  When a list is depleted, it
-    //  is removed from daatPtrs, so this loop runs until daatPtrs is empty.
+    //  The cursors are kept in a min-heap ordered by their current
+    //  docids.  Cursors that have run out of documents leave the heap.
 
-    //  This implementation is intended to be clear.  A more efficient
-    //  implementation would combine loops and use merge-sort.
+    InvListCursor[] heap = new InvListCursor[daatPtrs.size()];
+    int heapSize = 0;
 
-    while (this.daatPtrs.size() > 0) {
+    for (DaaTPtr ptr : daatPtrs)
+      if (ptr.cursor.nextDoc() != InvListCursor.NO_MORE_DOCS)
+	heap[heapSize++] = ptr.cursor;
 
-      int nextDocid = getSmallestCurrentDocid ();
+    for (int i = heapSize / 2 - 1; i >= 0; i--)
+      siftDown (heap, i, heapSize);
 
-      //  Create a new posting that is the union of the posting lists
-      //  that match the nextDocid.
+    //  Each pass of the loop adds 1 document to result until all of
+    //  the inverted lists are depleted.  The cursors on the smallest
+    //  docid are popped from the heap, their positions are merged,
+    //  and then they are advanced and pushed back onto the heap.
 
-      List<Integer> positions = new ArrayList<Integer>();
+    PositionMerger merger = new PositionMerger (heap.length);
 
-      for (int i=0; i<this.daatPtrs.size(); i++) {
-	DaaTPtr ptri = this.daatPtrs.get(i);
+    while (heapSize > 0) {
 
-	if (ptri.invList.getDocid (ptri.nextDoc) == nextDocid) {
-	  positions.addAll (ptri.invList.postings.get(ptri.nextDoc).positions);
-	  ptri.nextDoc ++;
-	}
+      int docid = heap[0].docID();
+
+      merger.clear ();
+
+      while ((heapSize > 0) && (heap[0].docID() == docid)) {
+	merger.add (heap[0]);
+	heap[0] = heap[--heapSize];
+	siftDown (heap, 0, heapSize);
       }
 
-      Collections.sort (positions);
-      result.invertedList.appendPosting (nextDocid, positions);
+      merger.merge ();
+      result.invertedList.appendPosting (docid, merger.positions, 0, merger.size);
 
-      //  If a DaatPtr has reached the end of its list, remove it.
-      //  The loop is backwards so that removing an arg does not
-      //  interfere with iteration.
+      //  The positions must be merged before the cursors move, because
+      //  a cursor may reuse its positions buffer for the next document.
 
-      for (int i=this.daatPtrs.size()-1; i>=0; i--) {
-	DaaTPtr ptri = this.daatPtrs.get(i);
+      for (int i = 0; i < merger.count; i++) {
+	InvListCursor cursor = merger.cursors[i];
 
-	if (ptri.nextDoc >= ptri.invList.postings.size()) {
-	  this.daatPtrs.remove (i);
+	if (cursor.nextDoc() != InvListCursor.NO_MORE_DOCS) {
+	  heap[heapSize] = cursor;
+	  siftUp (heap, heapSize++);
 	}
       }
     }
 
-    freeDaaTPtrs();
-
     return result;
   }
 
   /**
-   *  Return the smallest unexamined docid from the DaaTPtrs.
-   *  @return The smallest internal document id.
+   *  Restore the min-heap property below entry i of a heap of cursors.
+   *  @param heap The heap.
+   *  @param i The entry that may be out of place.
+   *  @param heapSize The number of entries in the heap.
    */
-  public int getSmallestCurrentDocid () {
+  private static void siftDown (InvListCursor[] heap, int i, int heapSize) {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= heapSize)
+	return;
+
+      if ((child + 1 < heapSize) && (heap[child + 1].docID() < heap[child].docID()))
+	child ++;
+
+      if (heap[child].docID() >= heap[i].docID())
+	return;
+
+      InvListCursor tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
+    }
+  }
+
+  /**
+   *  Restore the min-heap property above entry i of a heap of cursors.
+   *  @param heap The heap.
+   *  @param i The entry that may be out of place.
+   */
+  private static void siftUp (InvListCursor[] heap, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (heap[parent].docID() <= heap[i].docID())
+	return;
+
+      InvListCursor tmp = heap[i];
+      heap[i] = heap[parent];
+      heap[parent] = tmp;
+      i = parent;
+    }
+  }
+
+  /**
+   *  PositionMerger merges the sorted positions of the cursors that
+   *  are on the same document into one sorted array.  A min-heap of
+   *  the cursors, ordered by their next unmerged position, gives each
+   *  position in turn, so a document with tf positions from k cursors
+   *  costs O(tf log k).  The buffers are reused for every document.
+   */
+  private static class PositionMerger {
+
+    InvListCursor[] cursors;		// The cursors on the current document.
+    int count = 0;
+    int[] positions = new int[16];	// The merged positions.
+    int size = 0;
+
+    private int[][] arrays;
+    private int[] pointer;
+    private int[] end;
+    private int[] heap;
+
+    PositionMerger (int maxCursors) {
+      this.cursors = new InvListCursor[maxCursors];
+      this.arrays = new int[maxCursors][];
+      this.pointer = new int[maxCursors];
+      this.end = new int[maxCursors];
+      this.heap = new int[maxCursors];
+    }
+
+    void clear () {
+      this.count = 0;
+      this.size = 0;
+    }
+
+    /**
+     *  Add the positions of a cursor's current document.
+     */
+    void add (InvListCursor cursor) throws IOException {
+      this.cursors[this.count] = cursor;
+      this.arrays[this.count] = cursor.positions();
+      this.pointer[this.count] = cursor.positionsOffset();
+      this.end[this.count] = this.pointer[this.count] + cursor.freq();
+      this.count ++;
+    }
+
+    /**
+     *  Merge the positions of the cursors that were added.
+     */
+    void merge () {
+
+      int tf = 0;
+
+      for (int i = 0; i < this.count; i++)
+	tf += this.end[i] - this.pointer[i];
+
+      if (tf > this.positions.length)
+	this.positions = new int[Math.max (tf, 2 * this.positions.length)];
+
+      int heapSize = 0;
+
+      for (int i = 0; i < this.count; i++)
+	if (this.pointer[i] < this.end[i])
+	  this.heap[heapSize++] = i;
+
+      for (int i = heapSize / 2 - 1; i >= 0; i--)
+	this.siftDown (i, heapSize);
 
-    int nextDocid = Integer.MAX_VALUE;
+      //  Once one array is left, the rest of it is copied.
 
-    for (int i=0; i<this.daatPtrs.size(); i++) {
-      DaaTPtr ptri = this.daatPtrs.get(i);
-      if (nextDocid > ptri.invList.getDocid (ptri.nextDoc))
-	nextDocid = ptri.invList.getDocid (ptri.nextDoc);
+      while (heapSize > 1) {
+	int i = this.heap[0];
+
+	this.positions[this.size++] = this.arrays[i][this.pointer[i]++];
+
+	if (this.pointer[i] == this.end[i])
+	  this.heap[0] = this.heap[--heapSize];
+
+	this.siftDown (0, heapSize);
       }
 
-    return (nextDocid);
+      if (heapSize == 1) {
+	int i = this.heap[0];
+	int n = this.end[i] - this.pointer[i];
+
+	System.arraycopy (this.arrays[i], this.pointer[i], this.positions, this.size, n);
+	this.size += n;
+      }
+    }
+
+    private int current (int i) {
+      return this.arrays[i][this.pointer[i]];
+    }
+
+    private void siftDown (int i, int heapSize) {
+      while (true) {
+	int child = 2 * i + 1;
+
+	if (child >= heapSize)
+	  return;
+
+	if ((child + 1 < heapSize) &&
+	    (this.current (this.heap[child + 1]) < this.current (this.heap[child])))
+	  child ++;
+
+	if (this.current (this.heap[child]) >= this.current (this.heap[i]))
+	  return;
+
+	int tmp = this.heap[i];
+	this.heap[i] = this.heap[child];
+	this.heap[child] = tmp;
+	i = child;
+      }
+    }
   }
 
   /**
@@ -128,7 +293,7 @@ public class QryopIlSyn extends QryopIl {
 			    this.toString());
       else
 	if ((i>0) &&
-	    (! ptrs.get(i).invList.field.equals (ptrs.get(0).invList.field)))
+	    (! ptrs.get(i).cursor.field.equals (ptrs.get(0).cursor.field)))
 	  QryEval.fatalError ("Error:  Arguments must be in the same field:  " +
 			      this.toString());
     }
@@ -136,6 +301,29 @@ public class QryopIlSyn extends QryopIl {
     return true;
   }
 
+  /**
+   *  Return the canonical form of this query operator.  The order of
+   *  the arguments does not matter, so they are sorted.
+   *  @return The canonical form of this query operator.
+   */
+  public String getCanonicalForm () {
+
+    List<String> forms = new ArrayList<String> ();
+
+    for (Qryop arg : this.args)
+      forms.add ((arg instanceof QryopIl) ?
+		 ((QryopIl) arg).getCanonicalForm() : arg.toString());
+
+    Collections.sort (forms);
+
+    String result = new String ();
+
+    for (String form : forms)
+      result += (form + " ");
+
+    return ("#SYN( " + result + ")");
+  }
+
   /*
    *  Return a string version of this query operator.  
    *  @return The string version of this query operator.
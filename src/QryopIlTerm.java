@@ -12,9 +12,24 @@ import java.io.*;
 
 public class QryopIlTerm extends QryopIl {
 
+	//  If true, cursor() streams the inverted list from the index
+	//  instead of materializing it first.
+
+	public static boolean streamPostings = true;
+
+	//  Inverted lists that are shared across queries, or null if
+	//  inverted lists are not cached.
+
+	public static InvListCache cache = null;
+
 	private String term;
 	private String field;
 
+	//  The term's collection term frequency, or -1 if it has not been
+	//  looked up yet.
+
+	private volatile long ctf = -1;
+
 	/**
 	 *  Constructor.  The term is assumed to match the body field.
 	 *  @param t A term string.
@@ -36,6 +51,38 @@ public class QryopIlTerm extends QryopIl {
 		this.field = f;
 	}
 
+	/**
+	 *  Get the term string.
+	 *  @return The processed term string.
+	 */
+	public String getTerm() {
+		return this.term;
+	}
+
+	/**
+	 *  Get the field that the term matches in.
+	 *  @return The field name.
+	 */
+	public String getField() {
+		return this.field;
+	}
+
+	/**
+	 *  Get the collection term frequency of the term.  It is read from
+	 *  the index statistics (through the TermStats cache), so the
+	 *  inverted list is not materialized, and it is remembered, so
+	 *  default scores do not look it up for every document.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The ctf.
+	 *  @throws IOException
+	 */
+	public long getCtf(RetrievalModel r) throws IOException {
+		if (this.ctf < 0)
+			this.ctf = TermVector.getTermStats(this.field, this.term).ctf;
+
+		return this.ctf;
+	}
+
 	/*
 	 *  Every Qryop is required to have an add method that appends
 	 *  query arguments, but that doesn't make sense for the Term
@@ -54,10 +101,67 @@ public class QryopIlTerm extends QryopIl {
 	 */
 	public QryResult evaluate(RetrievalModel r) throws IOException {
 		QryResult result = new QryResult();
-		result.invertedList = new InvList(this.term, this.field);
+		result.invertedList = getInvList();
 		return result;
 	}
 
+	/**
+	 *  Get the term's inverted list from the cache, or from the index
+	 *  if it is not cached.
+	 *  @return The inverted list.
+	 *  @throws IOException
+	 */
+	private InvList getInvList() throws IOException {
+		if (cache == null)
+			return new InvList(this.term, this.field);
+
+		InvList list = cache.get(this.term, this.field);
+
+		if (list == null)
+			list = cache.load(this.term, this.field, this.loader());
+
+		return list.share();
+	}
+
+	/**
+	 *  Get a loader that reads the term's inverted list from the index,
+	 *  for the cache.
+	 *  @return The loader.
+	 */
+	private InvListCache.Loader loader() {
+		return new InvListCache.Loader() {
+			public InvList load() throws IOException {
+				return new InvList(term, field);
+			}
+		};
+	}
+
+	/**
+	 *  Return a cursor over the term's inverted list.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return A cursor that is positioned before the first document.
+	 *  @throws IOException
+	 */
+	public InvListCursor cursor(RetrievalModel r) throws IOException {
+		if (cache != null) {
+			InvList list = cache.get(this.term, this.field);
+
+			if (list != null)
+				return list.cursor();
+
+			// Terms that are not recurring are unlikely to be admitted to
+			// the cache, so it is cheaper to stream them.
+
+			if (!streamPostings || cache.isRecurring(this.term, this.field))
+				return cache.load(this.term, this.field, this.loader()).cursor();
+		}
+
+		if (streamPostings)
+			return InvListCursor.forTerm(this.term, this.field);
+
+		return super.cursor(r);
+	}
+
 	/*
 	 *  Return a string version of this query operator.  
 	 *  @return The string version of this query operator.
@@ -0,0 +1,292 @@
+/**
+ *  This class implements the WINDOW operator for all retrieval models.
+ *  The #WINDOW/n operator matches documents in which all of its
+ *  arguments occur, in any order, within a span of n positions.
+ *  The position of the last term in each matching span is recorded.
+ *
+ *  Copyright (c) 2014, Danni Wu.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopIlWindow extends QryopIl {
+
+	private int size;
+
+	/**
+	 *  It is convenient for the constructor to accept a variable number
+	 *  of arguments. Thus new QryopIlWindow (n, arg1, arg2, arg3, ...).
+	 */
+	public QryopIlWindow(int n, Qryop... q) {
+		size = n;
+		for (int i = 0; i < q.length; i++)
+			this.args.add(q[i]);
+	}
+
+	/**
+	 *  Appends an argument to the list of query operator arguments.  This
+	 *  simplifies the design of some query parsing architectures.
+	 *  @param {q} q The query argument (query operator) to append.
+	 *  @return void
+	 *  @throws IOException
+	 */
+	public void add (Qryop a) {
+		this.args.add(a);
+	}
+
+	/**
+	 *  Evaluates the query operator, including any child operators and
+	 *  returns the result.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The result of evaluating the query.
+	 *  @throws IOException
+	 */
+	public QryResult evaluate(RetrievalModel r) throws IOException {
+
+		QryResult result = getCachedResult ();
+
+		if (result == null) {
+			result = evaluateWindow (r);
+			cacheResult (result);
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Evaluates the query operator, including any child operators and
+	 *  returns the result, without using the result cache.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The result of evaluating the query.
+	 *  @throws IOException
+	 */
+	public QryResult evaluateWindow(RetrievalModel r) throws IOException {
+
+		//  Initialization
+
+		List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
+		syntaxCheckArgResults (daatPtrs);
+
+		QryResult qryResult = new QryResult ();
+		qryResult.invertedList.field = new String (daatPtrs.get(0).cursor.field);
+
+		/*
+		 * Documents are matched one at a time, the same way as #NEAR/n.
+		 * Within the document, a sliding window finds the matches (see
+		 * WindowMatcher).
+		 */
+
+		int[] matches = new int[16];		// Matching positions in the current document; reused.
+		WindowMatcher matcher = new WindowMatcher(daatPtrs.size(), this.size);
+		int docid = nextCommonDoc(daatPtrs, 0);
+
+		while (docid != InvListCursor.NO_MORE_DOCS) {
+
+			matcher.reset(daatPtrs);
+
+			int tf = 0;
+			int position;
+
+			while ((position = matcher.next()) >= 0) {
+				if (tf == matches.length) {
+					matches = Arrays.copyOf(matches, 2 * tf);
+				}
+				matches[tf++] = position;
+			}
+
+			if (tf != 0) {
+				qryResult.invertedList.appendPosting(docid, matches, 0, tf);
+			}
+
+			docid = nextCommonDoc(daatPtrs, docid + 1);
+		}
+
+		return qryResult;
+	}
+
+	/**
+	 *  WindowMatcher finds the #WINDOW/n matches in one document.  It
+	 *  keeps one position pointer per argument.  The arguments are kept
+	 *  in a min-heap ordered by their current positions, and the largest
+	 *  current position is tracked, so the span covered by the current
+	 *  positions is known at every step.  If the span fits in the window,
+	 *  it is a match, and every argument moves to its next position.
+	 *  Otherwise, only the argument with the smallest position moves,
+	 *  because no window that includes that position can match.  Each
+	 *  position is examined once, so a document costs
+	 *  O(positions * log(arguments)), and nothing is allocated per document.
+	 */
+	private static class WindowMatcher {
+
+		private int size;
+		private int[][] positions;	// Positions arrays of the current document.
+		private int[] pointer;		// The current position, per argument.
+		private int[] end;
+		private int[] heap;		// Arguments ordered by current position.
+		private int maxPosition;
+		private boolean done;
+
+		WindowMatcher(int numArgs, int size) {
+			this.size = size;
+			this.positions = new int[numArgs][];
+			this.pointer = new int[numArgs];
+			this.end = new int[numArgs];
+			this.heap = new int[numArgs];
+		}
+
+		/**
+		 *  Prepare to match the document that all of the cursors are on.
+		 *  @param daatPtrs The DaaTPtrs of the query arguments.
+		 *  @throws IOException
+		 */
+		void reset(List<DaaTPtr> daatPtrs) throws IOException {
+			for (int i = 0; i < daatPtrs.size(); i++) {
+				InvListCursor cursori = daatPtrs.get(i).cursor;
+				this.positions[i] = cursori.positions();
+				this.pointer[i] = cursori.positionsOffset();
+				this.end[i] = this.pointer[i] + cursori.freq();
+			}
+			this.done = false;
+			this.buildHeap();
+		}
+
+		/**
+		 *  Find the next match in the document.
+		 *  @return The last position in the matching window, or -1 if there are no more matches.
+		 */
+		int next() {
+			while (!this.done) {
+				int minPosition = this.current(this.heap[0]);
+
+				if (this.maxPosition - minPosition < this.size) {
+					int position = this.maxPosition;
+
+					// Every argument moves past the match.
+					for (int i = 0; i < this.pointer.length && !this.done; i++) {
+						this.pointer[i]++;
+						this.done = (this.pointer[i] >= this.end[i]);
+					}
+					if (!this.done) {
+						this.buildHeap();
+					}
+					return position;
+				}
+
+				// The smallest position can't be in a match.
+				int arg = this.heap[0];
+				this.pointer[arg]++;
+				if (this.pointer[arg] >= this.end[arg]) {
+					this.done = true;
+				} else {
+					this.maxPosition = Math.max(this.maxPosition, this.current(arg));
+					this.siftDown(0);
+				}
+			}
+
+			return -1;
+		}
+
+		private int current(int arg) {
+			return this.positions[arg][this.pointer[arg]];
+		}
+
+		private void buildHeap() {
+			this.maxPosition = Integer.MIN_VALUE;
+			for (int i = 0; i < this.heap.length; i++) {
+				if (this.pointer[i] >= this.end[i]) {
+					this.done = true;
+					return;
+				}
+				this.heap[i] = i;
+				this.maxPosition = Math.max(this.maxPosition, this.current(i));
+			}
+			for (int i = this.heap.length / 2 - 1; i >= 0; i--) {
+				this.siftDown(i);
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int child = 2 * i + 1;
+
+				if (child >= this.heap.length) {
+					return;
+				}
+
+				if (child + 1 < this.heap.length && this.current(this.heap[child + 1]) < this.current(this.heap[child])) {
+					child++;
+				}
+
+				if (this.current(this.heap[child]) >= this.current(this.heap[i])) {
+					return;
+				}
+
+				int tmp = this.heap[i];
+				this.heap[i] = this.heap[child];
+				this.heap[child] = tmp;
+				i = child;
+			}
+		}
+	}
+
+	/**
+	 *  syntaxCheckArgResults does syntax checking that can only be done
+	 *  after query arguments are evaluated.
+	 *  @param ptrs A list of DaaTPtrs for this query operator.
+	 *  @return True if the syntax is valid, false otherwise.
+	 */
+	public Boolean syntaxCheckArgResults (List<DaaTPtr> ptrs) {
+
+		for (int i=0; i<this.args.size(); i++) {
+
+			if (! (this.args.get(i) instanceof QryopIl))
+				QryEval.fatalError ("Error:  Invalid argument in " +
+						this.toString());
+			else
+				if ((i>0) &&
+						(! ptrs.get(i).cursor.field.equals (ptrs.get(0).cursor.field)))
+					QryEval.fatalError ("Error:  Arguments must be in the same field:  " +
+							this.toString());
+		}
+
+		return true;
+	}
+
+	/**
+	 *  Return the canonical form of this query operator.  The order of
+	 *  the arguments does not matter, so they are sorted.
+	 *  @return The canonical form of this query operator.
+	 */
+	public String getCanonicalForm () {
+
+		List<String> forms = new ArrayList<String> ();
+
+		for (Qryop arg : this.args)
+			forms.add ((arg instanceof QryopIl) ?
+					((QryopIl) arg).getCanonicalForm() : arg.toString());
+
+		Collections.sort (forms);
+
+		String result = new String ();
+
+		for (String form : forms)
+			result += (form + " ");
+
+		return ("#WINDOW/" + String.valueOf(this.size) + "( " + result + ")");
+	}
+
+	/*
+	 *  Return a string version of this query operator.
+	 *  @return The string version of this query operator.
+	 */
+	public String toString(){
+
+		String result = new String ();
+
+		for (Iterator<Qryop> i = this.args.iterator(); i.hasNext(); )
+			result += (i.next().toString() + " ");
+
+		return ("#WINDOW/" + String.valueOf(this.size) + "( " + result + ")");
+	}
+}
@@ -18,28 +18,267 @@ public abstract class QryopSl extends Qryop {
    *  Use the specified retrieval model to evaluate the query arguments.
    *  Define and return DaaT pointers that the query operator can use.
    *  @param r A retrieval model that controls how the operator behaves.
-   *  @return void
+   *  @return The daatPtrs.
    *  @throws IOException
    */
-  public void allocDaaTPtrs (RetrievalModel r) throws IOException {
+  public List<DaaTPtr> allocDaaTPtrs (RetrievalModel r) throws IOException {
+
+    List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
 
     for (int i=0; i<this.args.size(); i++) {
 
       //  If this argument doesn't return ScoreLists, wrap it
       //  in a #SCORE operator.
 
-      if (! QryopSl.class.isInstance (this.args.get(i)))
-	this.args.set(i, new QryopSlScore(this.args.get(i)));
+      Qryop argi = this.args.get(i);
+
+      if (! QryopSl.class.isInstance (argi))
+	argi = new QryopSlScore(argi);
 
       DaaTPtr ptri = new DaaTPtr ();
       ptri.invList = null;
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      ptri.scoreList = argi.evaluate(r).docScores;
       ptri.nextDoc = 0;
 	
-      this.daatPtrs.add (ptri);
+      daatPtrs.add (ptri);
+    }
+
+    return daatPtrs;
+  }
+
+  /**
+   *  Evaluate the query operator for retrieval models in which a
+   *  document that matches any argument gets a score (e.g., BM25 and
+   *  Indri).  An argument that does not match the document contributes
+   *  its default score.  The arguments' scores are combined by
+   *  combineScores.  The scores are gathered in an array that is
+   *  reused for every document.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  protected QryResult evaluateUnion (RetrievalModel r) throws IOException {
+
+    List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
+    QryResult result = new QryResult ();
+
+    int[] docids = new int[daatPtrs.size()];	// The current docid of each argument
+    double[] scores = new double[daatPtrs.size()];
+
+    //  Only Indri gives an argument that does not match a document a
+    //  default score; the other models give it 0, so they visit only
+    //  the arguments that match each document.  The field and ctf that
+    //  the default score of an argument that produces an inverted list
+    //  depends on are found once, not once for every document that the
+    //  argument does not match.
+
+    boolean defaults = (r instanceof RetrievalModelIndri);
+    String[] fields = new String[daatPtrs.size()];
+    long[] ctfs = new long[daatPtrs.size()];
+
+    //  The arguments that have documents left are kept in a min-heap
+    //  ordered by their current docid (see siftDown), so the next
+    //  document and the arguments that match it are found in O(log n)
+    //  time per match.
+
+    int[] heap = new int[daatPtrs.size()];
+    int heapSize = 0;
+    int[] matched = new int[daatPtrs.size()];	// The arguments that match the document
+    int[] matchedDoc = new int[daatPtrs.size()];	// The last document that each argument matched
+
+    for (int i=0; i<daatPtrs.size(); i++) {
+      DaaTPtr ptri = daatPtrs.get(i);
+
+      if (ptri.cursor != null)
+	docids[i] = ptri.cursor.nextDoc();
+      else
+	docids[i] = (ptri.scoreList.size() > 0) ?
+	  ptri.scoreList.getDocid(0) : InvListCursor.NO_MORE_DOCS;
+
+      matchedDoc[i] = -1;
+
+      if (docids[i] != InvListCursor.NO_MORE_DOCS)
+	heap[heapSize++] = i;
+
+      if (! defaults)
+	continue;
+
+      QryopIl il = getInvListArg (this.args.get(i));
+
+      if (ptri.cursor != null) {
+	fields[i] = ptri.cursor.field;
+	ctfs[i] = ptri.cursor.ctf();
+      } else if (il != null) {
+	fields[i] = il.getField();
+	ctfs[i] = il.getCtf(r);
+      }
+    }
+
+    for (int i = heapSize / 2 - 1; i >= 0; i--)
+      siftDown (heap, i, heapSize, docids);
+
+    //  Each pass of the loop scores the smallest unexamined docid.
+
+    while (heapSize > 0) {
+
+      int docid = docids[heap[0]];
+      int numMatched = 0;
+
+      //  Score the arguments that match the document and move them to
+      //  their next documents.
+
+      while ((heapSize > 0) && (docids[heap[0]] == docid)) {
+	int i = heap[0];
+	DaaTPtr ptri = daatPtrs.get(i);
+
+	scores[i] = getScore (ptri, r);
+	matched[numMatched++] = i;
+	matchedDoc[i] = docid;
+	docids[i] = nextDoc (ptri);
+
+	if (docids[i] == InvListCursor.NO_MORE_DOCS)
+	  heap[0] = heap[--heapSize];
+
+	siftDown (heap, 0, heapSize, docids);
+      }
+
+      if (defaults)
+	for (int i=0; i<docids.length; i++)
+	  if (matchedDoc[i] == docid)
+	    continue;
+	  else if (fields[i] != null)
+	    scores[i] = QryopSlScore.getDefaultScore (r, fields[i], ctfs[i], docid);
+	  else
+	    scores[i] = getDefaultScore (r, this.args.get(i), docid);
+
+      result.docScores.add (docid, this.combineScores (r, scores));
+
+      if (! defaults)
+	for (int j=0; j<numMatched; j++)
+	  scores[matched[j]] = 0.0;
+    }
+
+    return result;
+  }
+
+  /**
+   *  Restore the min-heap property below entry i of a heap of argument
+   *  indexes that is ordered by the arguments' current docids.
+   *  @param heap The heap.
+   *  @param i The entry that may be out of place.
+   *  @param heapSize The number of entries in the heap.
+   *  @param docids The current docid of each argument.
+   */
+  protected static void siftDown (int[] heap, int i, int heapSize, int[] docids) {
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= heapSize)
+	return;
+
+      if ((child + 1 < heapSize) && (docids[heap[child + 1]] < docids[heap[child]]))
+	child ++;
+
+      if (docids[heap[child]] >= docids[heap[i]])
+	return;
+
+      int tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
     }
   }
 
+  /**
+   *  Combine the scores of the query arguments for one document.
+   *  This is used by evaluateUnion.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param scores The score (or default score) of each argument.
+   *  @return The document's score.
+   */
+  protected abstract double combineScores (RetrievalModel r, double[] scores);
+
+  /**
+   *  Get the score of the document that a DaaTPtr is positioned on.
+   *  @param ptr A DaaTPtr.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The document's score.
+   *  @throws IOException
+   */
+  protected static double getScore (DaaTPtr ptr, RetrievalModel r) throws IOException {
+
+    if (ptr.cursor != null)
+      return QryopSlScore.getScore (r, ptr.cursor);
+
+    return ptr.scoreList.getDocidScore (ptr.nextDoc);
+  }
+
+  /**
+   *  Move a DaaTPtr to its next document.
+   *  @param ptr A DaaTPtr.
+   *  @return The document id, or InvListCursor.NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  private static int nextDoc (DaaTPtr ptr) throws IOException {
+
+    if (ptr.cursor != null)
+      return ptr.cursor.nextDoc();
+
+    ptr.nextDoc ++;
+
+    return (ptr.nextDoc < ptr.scoreList.size()) ?
+      ptr.scoreList.getDocid (ptr.nextDoc) : InvListCursor.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Get the inverted list that a query argument scores:  the argument
+   *  itself, or the argument of a #SCORE operator.
+   *  @param arg The argument.
+   *  @return The inverted list operator, or null if the argument
+   *    combines score lists.
+   */
+  protected static QryopIl getInvListArg (Qryop arg) {
+
+    if (arg instanceof QryopSl)
+      return ((QryopSl) arg).getScoredInvList();
+
+    return (arg instanceof QryopIl) ? (QryopIl) arg : null;
+  }
+
+  /**
+   *  Get the inverted list that this query operator scores, if all that
+   *  it does is score one inverted list (e.g., #SCORE).  A parent can
+   *  read that inverted list through a cursor and score it itself
+   *  instead of evaluating this query operator.  Operators that wrap
+   *  another operator (e.g., for profiling) must forward this call.
+   *  @return The inverted list operator, or null.
+   */
+  public QryopIl getScoredInvList () {
+    return null;
+  }
+
+  /**
+   *  Calculate the default score of a query argument for a document
+   *  that the argument does not match.  Arguments that produce
+   *  inverted lists are scored as if they were in a #SCORE operator.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param arg The argument.
+   *  @param docid The internal id of the document that needs a default score.
+   *  @return The default score.
+   *  @throws IOException
+   */
+  protected static double getDefaultScore (RetrievalModel r, Qryop arg, long docid)
+    throws IOException {
+
+    if (arg instanceof QryopSl)
+      return ((QryopSl) arg).getDefaultScore (r, docid);
+
+    QryopIl il = (QryopIl) arg;
+
+    return QryopSlScore.getDefaultScore (r, il.getField(), il.getCtf (r), (int) docid);
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
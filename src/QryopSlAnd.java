@@ -9,6 +9,12 @@ import java.util.*;
 
 public class QryopSlAnd extends QryopSl {
 
+	//  A score list is searched by galloping when it is at least this
+	//  many times longer than the list that controls the search for
+	//  matches; otherwise it is merged linearly.
+
+	private static final int GALLOP_RATIO = 8;
+
 	/**
 	 *  It is convenient for the constructor to accept a variable number
 	 *  of arguments. Thus new qryopAnd (arg1, arg2, arg3, ...).
@@ -42,9 +48,52 @@ public class QryopSlAnd extends QryopSl {
 		if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
 			return (evaluateBoolean (r));
 
+		if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri)
+			return (evaluateUnion (r));
+
 		return null;
 	}
 
+	/**
+	 *  Use the specified retrieval model to evaluate the query arguments.
+	 *  Define and return DaaT pointers that the query operator can use.
+	 *  Arguments that produce inverted lists are accessed through
+	 *  cursors and scored one document at a time, so documents that
+	 *  cannot match are skipped instead of being decoded and scored.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The daatPtrs.
+	 *  @throws IOException
+	 */
+	public List<DaaTPtr> allocDaaTPtrs (RetrievalModel r) throws IOException {
+
+		List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
+
+		for (int i=0; i<this.args.size(); i++) {
+
+			Qryop argi = this.args.get(i);
+			QryopIl il = getInvListArg (argi);
+
+			if (il != null)
+				argi = il;
+
+			DaaTPtr ptri = new DaaTPtr ();
+			ptri.invList = null;
+			ptri.nextDoc = 0;
+
+			if (argi instanceof QryopIl) {
+				ptri.cursor = ((QryopIl) argi).cursor(r);
+				ptri.scoreList = null;
+			} else {
+				ptri.cursor = null;
+				ptri.scoreList = argi.evaluate(r).docScores;
+			}
+
+			daatPtrs.add (ptri);
+		}
+
+		return daatPtrs;
+	}
+
 	/**
 	 *  Evaluates the query operator for boolean retrieval models,
 	 *  including any child operators and returns the result.
@@ -56,23 +105,28 @@ public class QryopSlAnd extends QryopSl {
 
 		//  Initialization
 
-		allocDaaTPtrs (r);
+		List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
 		QryResult result = new QryResult ();
 
 		//  Sort the arguments so that the shortest lists are first.  This
 		//  improves the efficiency of exact-match AND without changing
 		//  the result.
 
-		for (int i=0; i<(this.daatPtrs.size()-1); i++) {
-			for (int j=i+1; j<this.daatPtrs.size(); j++) {
-				if (this.daatPtrs.get(i).scoreList.scores.size() >
-				this.daatPtrs.get(j).scoreList.scores.size()) {
-					ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
-					this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
-					this.daatPtrs.get(j).scoreList = tmpScoreList;
-				}
+		Collections.sort (daatPtrs, new Comparator<DaaTPtr>() {
+			public int compare (DaaTPtr ptr1, DaaTPtr ptr2) {
+				return Integer.compare (getLength (ptr1), getLength (ptr2));
 			}
-		}
+		});
+
+		//  Choose between linear merging and galloping for each score
+		//  list, based on how its length compares to the shortest list.
+		//  Cursors use the index skip data instead.
+
+		boolean[] gallop = new boolean[daatPtrs.size()];
+		long length0 = getLength (daatPtrs.get(0));
+
+		for (int j=1; j<daatPtrs.size(); j++)
+			gallop[j] = (getLength (daatPtrs.get(j)) >= GALLOP_RATIO * length0);
 
 		//  Exact-match AND requires that ALL scoreLists contain a
 		//  document id.  Use the first (shortest) list to control the
@@ -82,48 +136,76 @@ public class QryopSlAnd extends QryopSl {
 		//  to terminate an outer loop from within an inner loop.
 		//  Otherwise it is necessary to use flags, which is also ugly.
 
-		DaaTPtr ptr0 = this.daatPtrs.get(0);
+		DaaTPtr ptr0 = daatPtrs.get(0);
+		int ptr0Docid = advance (ptr0, 0, false);
 
 		EVALUATEDOCUMENTS:
-			for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
-
-				int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
-				double docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
+			while (ptr0Docid != InvListCursor.NO_MORE_DOCS) {
 
 				//  Do the other query arguments have the ptr0Docid?
 
-				for (int j=1; j<this.daatPtrs.size(); j++) {
-
-					DaaTPtr ptrj = this.daatPtrs.get(j);
-
-					while (true) {
-						if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-							break EVALUATEDOCUMENTS;		// No more docs can match
-						else
-							if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
-								continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
-							else
-								if (ptrj.scoreList.getDocid (ptrj.nextDoc) < ptr0Docid)
-									ptrj.nextDoc ++;			// Not yet at the right doc.
-								else{
-									if (ptrj.scoreList.getDocidScore(ptrj.nextDoc) < docScore) { // Use the MIN function to combine the scores from the query arguments.
-										docScore = ptrj.scoreList.getDocidScore(ptrj.nextDoc);
-									}
-									break;				// ptrj matches ptr0Docid
-								}
-					}
+				for (int j=1; j<daatPtrs.size(); j++) {
+
+					int ptrjDocid = advance (daatPtrs.get(j), ptr0Docid, gallop[j]);
+
+					if (ptrjDocid == InvListCursor.NO_MORE_DOCS)
+						break EVALUATEDOCUMENTS;		// No more docs can match
+					else
+						if (ptrjDocid > ptr0Docid) {
+							ptr0Docid = advance (ptr0, ptrjDocid, false);	// The ptr0docid can't match.
+							continue EVALUATEDOCUMENTS;
+						}
 				}
 
 				//  The ptr0Docid matched all query arguments, so save it.
+				//  Use the MIN function to combine the scores from the
+				//  query arguments.
+
+				double docScore = getScore (ptr0, r);
+
+				for (int j=1; j<daatPtrs.size(); j++)
+					docScore = Math.min (docScore, getScore (daatPtrs.get(j), r));
 
 				result.docScores.add (ptr0Docid, docScore);
+				ptr0Docid = advance (ptr0, ptr0Docid + 1, false);
 			}
 
-		freeDaaTPtrs ();
-
 		return result;
 	}
 
+	/**
+	 *  Move a DaaTPtr to the first document whose id is at least target.
+	 *  @param ptr The DaaTPtr to move.
+	 *  @param target The smallest acceptable document id.
+	 *  @param gallop If true, search a score list by galloping.
+	 *  @return The document id, or InvListCursor.NO_MORE_DOCS.
+	 *  @throws IOException
+	 */
+	private int advance (DaaTPtr ptr, int target, boolean gallop) throws IOException {
+
+		if (ptr.cursor != null) {
+			int docid = ptr.cursor.docID();
+			return (docid < target) ? ptr.cursor.advance (target) : docid;
+		}
+
+		if (gallop)
+			ptr.nextDoc = ptr.scoreList.gallop (ptr.nextDoc, target);
+		else
+			ptr.nextDoc = ptr.scoreList.findNext (ptr.nextDoc, target);
+
+		return (ptr.nextDoc < ptr.scoreList.size()) ?
+				ptr.scoreList.getDocid (ptr.nextDoc) : InvListCursor.NO_MORE_DOCS;
+	}
+
+	/**
+	 *  Get the number of documents that a DaaTPtr can visit.
+	 *  @param ptr A DaaTPtr.
+	 *  @return The length of the DaaTPtr's list.
+	 */
+	private int getLength (DaaTPtr ptr) {
+		return (ptr.cursor != null) ? ptr.cursor.df() : ptr.scoreList.size();
+	}
+
 	/*
 	 *  Calculate the default score for the specified document if it
 	 *  does not match the query operator.  This score is 0 for many
@@ -134,12 +216,48 @@ public class QryopSlAnd extends QryopSl {
 	 */
 	public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
 
-		if (r instanceof RetrievalModelUnrankedBoolean)
-			return (0.0);
+		//  Indri gives a document that does not match the query operator
+		//  the combination of its arguments' default scores.  They are
+		//  combined as combineScores does, without an array for each
+		//  document.
+
+		if (r instanceof RetrievalModelIndri) {
+			double score = 0.0;
+
+			for (int i=0; i<this.args.size(); i++)
+				score += Math.log (getDefaultScore (r, this.args.get(i), docid));
+
+			return Math.exp (score / this.args.size());
+		}
 
 		return 0.0;
 	}
 
+	/**
+	 *  Combine the scores of the query arguments for one document.  BM25
+	 *  adds the scores.  Indri uses the geometric mean of the
+	 *  probabilities, which is calculated with logs.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param scores The score (or default score) of each argument.
+	 *  @return The document's score.
+	 */
+	protected double combineScores (RetrievalModel r, double[] scores) {
+
+		double score = 0.0;
+
+		if (r instanceof RetrievalModelIndri) {
+			for (int i=0; i<scores.length; i++)
+				score += Math.log (scores[i]);
+
+			return Math.exp (score / scores.length);
+		}
+
+		for (int i=0; i<scores.length; i++)
+			score += scores[i];
+
+		return score;
+	}
+
 	/*
 	 *  Return a string version of this query operator.  
 	 *  @return The string version of this query operator.
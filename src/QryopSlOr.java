@@ -39,11 +39,12 @@ public class QryopSlOr extends QryopSl {
 	 */
 	public QryResult evaluate(RetrievalModel r) throws IOException {
 
-		//TODO: ranked?
-
 		if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
 			return (evaluateBoolean (r));
 
+		if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri)
+			return (evaluateUnion (r));
+
 		return null;
 	}
 
@@ -58,48 +59,87 @@ public class QryopSlOr extends QryopSl {
 
 		//  Initialization
 
-		allocDaaTPtrs (r);
+		List<DaaTPtr> daatPtrs = allocDaaTPtrs (r);
 		QryResult result = new QryResult ();
 
-		while (this.daatPtrs.size() > 0) {
-			int currentId = Integer.MAX_VALUE;
-
-			// Find the minimum doc id.
-			for (int i = 0; i < this.daatPtrs.size(); i++) { 
-				DaaTPtr currentPtr = this.daatPtrs.get(i);
-				if (currentPtr.nextDoc >= currentPtr.scoreList.scores.size()) { // No more docs in this scoreList
-					this.daatPtrs.remove(i);
-					i--;
-					continue;
-				}
+		// The DaaTPtrs that have documents left are kept in a min-heap
+		// ordered by their current document id, so the next document
+		// and the lists that contain it are found in O(log n) time.
+		DaaTPtr[] heap = new DaaTPtr[daatPtrs.size()];
+		int heapSize = 0;
 
-				if (currentPtr.scoreList.getDocid(currentPtr.nextDoc) < currentId) {
-					currentId = currentPtr.scoreList.getDocid(currentPtr.nextDoc);
-				} 	
+		for (DaaTPtr ptr : daatPtrs) {
+			if (ptr.scoreList.size() > 0) {
+				heap[heapSize++] = ptr;
 			}
+		}
 
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(heap, i, heapSize);
+		}
+
+		while (heapSize > 0) {
+			int currentId = getCurrentDocid(heap[0]);
 			double docScore = -1.0; 
-			// Examine each list that contains currentId to compute currentScore. Store the result. Advance each pointer that points to the currentId.
-			for (int i = 0; i < this.daatPtrs.size(); i++) { 
-				DaaTPtr currentPtr = this.daatPtrs.get(i);
-				if (currentId == currentPtr.scoreList.getDocid(currentPtr.nextDoc)) {
-					if (currentPtr.scoreList.getDocidScore(currentPtr.nextDoc) > docScore) { // Compute currentScore
-						docScore = currentPtr.scoreList.getDocidScore(currentPtr.nextDoc);
-					}
-					currentPtr.nextDoc ++;
+
+			// Pop each list that contains currentId to compute currentScore. Advance it and push it back if it has more docs.
+			while (heapSize > 0 && getCurrentDocid(heap[0]) == currentId) {
+				DaaTPtr currentPtr = heap[0];
+				if (currentPtr.scoreList.getDocidScore(currentPtr.nextDoc) > docScore) { // Compute currentScore
+					docScore = currentPtr.scoreList.getDocidScore(currentPtr.nextDoc);
 				}
-			}
+				currentPtr.nextDoc ++;
 
-			if (currentId < 552682) {
-				result.docScores.add (currentId, docScore);
+				if (currentPtr.nextDoc >= currentPtr.scoreList.size()) { // No more docs in this scoreList
+					heap[0] = heap[--heapSize];
+				}
+				siftDown(heap, 0, heapSize);
 			}
-		}
 
-		freeDaaTPtrs ();
+			result.docScores.add (currentId, docScore);
+		}
 
 		return result;
 	}
 
+	/**
+	 *  Get the document id that a DaaTPtr is positioned on.
+	 *  @param ptr A DaaTPtr that has documents left.
+	 *  @return The internal document id.
+	 */
+	private static int getCurrentDocid (DaaTPtr ptr) {
+		return ptr.scoreList.getDocid(ptr.nextDoc);
+	}
+
+	/**
+	 *  Restore the min-heap property below entry i of a heap of DaaTPtrs.
+	 *  @param heap The heap.
+	 *  @param i The entry that may be out of place.
+	 *  @param heapSize The number of entries in the heap.
+	 */
+	private static void siftDown (DaaTPtr[] heap, int i, int heapSize) {
+		while (true) {
+			int child = 2 * i + 1;
+
+			if (child >= heapSize) {
+				return;
+			}
+
+			if (child + 1 < heapSize && getCurrentDocid(heap[child + 1]) < getCurrentDocid(heap[child])) {
+				child ++;
+			}
+
+			if (getCurrentDocid(heap[child]) >= getCurrentDocid(heap[i])) {
+				return;
+			}
+
+			DaaTPtr tmp = heap[i];
+			heap[i] = heap[child];
+			heap[child] = tmp;
+			i = child;
+		}
+	}
+
 	/*
 	 *  Calculate the default score for the specified document if it
 	 *  does not match the query operator.  This score is 0 for many
@@ -110,12 +150,50 @@ public class QryopSlOr extends QryopSl {
 	 */
 	public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
 
-		if (r instanceof RetrievalModelUnrankedBoolean)
-			return (0.0);
+		//  Indri gives a document that does not match the query operator
+		//  the combination of its arguments' default scores.  They are
+		//  combined as combineScores does, without an array for each
+		//  document.
+
+		if (r instanceof RetrievalModelIndri) {
+			double noMatch = 1.0;
+
+			for (int i=0; i<this.args.size(); i++)
+				noMatch *= (1.0 - getDefaultScore (r, this.args.get(i), docid));
+
+			return (1.0 - noMatch);
+		}
 
 		return 0.0;
 	}
 
+	/**
+	 *  Combine the scores of the query arguments for one document.  BM25
+	 *  uses the MAX, as the Boolean models do.  Indri uses the
+	 *  probability that at least one argument matches.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param scores The score (or default score) of each argument.
+	 *  @return The document's score.
+	 */
+	protected double combineScores (RetrievalModel r, double[] scores) {
+
+		if (r instanceof RetrievalModelIndri) {
+			double noMatch = 1.0;
+
+			for (int i=0; i<scores.length; i++)
+				noMatch *= (1.0 - scores[i]);
+
+			return (1.0 - noMatch);
+		}
+
+		double score = scores[0];
+
+		for (int i=1; i<scores.length; i++)
+			score = Math.max (score, scores[i]);
+
+		return score;
+	}
+
 	/*
 	 *  Return a string version of this query operator.  
 	 *  @return The string version of this query operator.
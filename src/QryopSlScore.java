@@ -41,6 +41,18 @@ public class QryopSlScore extends QryopSl {
 		this.args.add(a);
 	}
 
+	/**
+	 *  Get the inverted list that this operator scores.
+	 *  @return The inverted list operator, or null if the argument
+	 *    produces a score list.
+	 */
+	public QryopIl getScoredInvList () {
+		if ((this.args.size() == 1) && (this.args.get(0) instanceof QryopIl))
+			return (QryopIl) this.args.get(0);
+
+		return null;
+	}
+
 	/**
 	 *  Evaluate the query operator.
 	 *  @param r A retrieval model that controls how the operator behaves.
@@ -52,6 +64,9 @@ public class QryopSlScore extends QryopSl {
 		if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean)
 			return (evaluateBoolean (r));
 
+		if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri)
+			return (evaluateRanked (r));
+
 		return null;
 	}
 
@@ -76,7 +91,7 @@ public class QryopSlScore extends QryopSl {
 
 				// Unranked Boolean. All matching documents get a score of 1.0.
 
-				result.docScores.add(result.invertedList.postings.get(i).docid,
+				result.docScores.add(result.invertedList.getDocid(i),
 						(float) 1.0);
 			}
 		} else if (r instanceof RetrievalModelRankedBoolean) { // For ranked boolean
@@ -84,8 +99,8 @@ public class QryopSlScore extends QryopSl {
 
 				// Ranked Boolean. The score for matching a query term is its term frequency (tf) in the document.
 
-				result.docScores.add(result.invertedList.postings.get(i).docid,
-						(float) result.invertedList.postings.get(i).tf);
+				result.docScores.add(result.invertedList.getDocid(i),
+						(float) result.invertedList.getTf(i));
 			}
 		}
 
@@ -98,6 +113,94 @@ public class QryopSlScore extends QryopSl {
 		return result;
 	}
 
+	/**
+	 *  Evaluate the query operator for the BM25 and Indri retrieval
+	 *  models.  The statistics of the field are looked up once, and the
+	 *  inverted list's arrays are scored directly.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The result of evaluating the query.
+	 *  @throws IOException
+	 */
+	public QryResult evaluateRanked(RetrievalModel r) throws IOException {
+
+		QryResult result = args.get(0).evaluate(r);
+		InvList list = result.invertedList;
+
+		if (list.df > 0) {
+			if (r instanceof RetrievalModelBM25) {
+				RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+				CollectionStats.FieldStats stats = bm25.getStats().get(list.field);
+
+				for (int i = 0; i < list.df; i++) {
+					result.docScores.add(list.docids[i],
+							bm25.getScore(stats, list.df, list.tfs[i], list.docids[i]));
+				}
+			} else {
+				RetrievalModelIndri indri = (RetrievalModelIndri) r;
+				CollectionStats.FieldStats stats = indri.getStats().get(list.field);
+
+				for (int i = 0; i < list.df; i++) {
+					result.docScores.add(list.docids[i],
+							indri.getScore(stats, list.ctf, list.tfs[i], list.docids[i]));
+				}
+			}
+
+			result.invertedList = new InvList();
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Calculate the score of the document that a cursor is positioned
+	 *  on.  This lets operators such as #AND score a document without
+	 *  materializing the argument's inverted list or score list.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param cursor A cursor positioned on the document to score.
+	 *  @return The document's score.
+	 *  @throws IOException
+	 */
+	public static double getScore (RetrievalModel r, InvListCursor cursor) throws IOException {
+
+		if (r instanceof RetrievalModelRankedBoolean)
+			return (float) cursor.freq();
+
+		if (r instanceof RetrievalModelBM25) {
+			RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+			return bm25.getScore(bm25.getStats().get(cursor.field), cursor.df(),
+					cursor.freq(), cursor.docID());
+		}
+
+		if (r instanceof RetrievalModelIndri) {
+			RetrievalModelIndri indri = (RetrievalModelIndri) r;
+			return indri.getScore(indri.getStats().get(cursor.field), cursor.ctf(),
+					cursor.freq(), cursor.docID());
+		}
+
+		return (float) 1.0;
+	}
+
+	/**
+	 *  Calculate the default score for a document that does not contain
+	 *  an inverted list's term.  Only the Indri retrieval model gives
+	 *  such documents a score.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param field The field of the inverted list.
+	 *  @param ctf The collection term frequency of the inverted list.
+	 *  @param docid The internal id of the document that needs a default score.
+	 *  @return The default score.
+	 *  @throws IOException
+	 */
+	public static double getDefaultScore (RetrievalModel r, String field, long ctf, int docid) throws IOException {
+
+		if (r instanceof RetrievalModelIndri) {
+			RetrievalModelIndri indri = (RetrievalModelIndri) r;
+			return indri.getScore(indri.getStats().get(field), ctf, 0, docid);
+		}
+
+		return 0.0;
+	}
+
 	/*
 	 *  Calculate the default score for a document that does not match
 	 *  the query argument.  This score is 0 for many retrieval models,
@@ -108,12 +211,22 @@ public class QryopSlScore extends QryopSl {
 	 */
 	public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
 
-		if (r instanceof RetrievalModelUnrankedBoolean)
-			return (0.0);
+		if (r instanceof RetrievalModelIndri)
+			return getDefaultScore (r, args.get(0), docid);
 
 		return 0.0;
 	}
 
+	/**
+	 *  A SCORE operator has one argument, so its score is passed through.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param scores The score (or default score) of the argument.
+	 *  @return The score.
+	 */
+	protected double combineScores (RetrievalModel r, double[] scores) {
+		return scores[0];
+	}
+
 	/**
 	 *  Return a string version of this query operator.  
 	 *  @return The string version of this query operator.
@@ -0,0 +1,212 @@
+/**
+ *  This class implements the WAND (weighted AND) operator for the
+ *  ranked retrieval models.  Each argument has a weight, e.g.,
+ *  #WAND (0.7 #AND (a b) 0.3 #SYN (c d)).  For Indri, the score is the
+ *  weighted geometric mean of the arguments' probabilities; for BM25,
+ *  it is the weighted sum of the arguments' scores.  The query
+ *  expansion stage (QryExpander) uses it to combine the original
+ *  query with the expansion terms.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopSlWAnd extends QryopSl {
+
+	//  The weight of each argument.  weights[i] is the weight of
+	//  args.get(i).  The parser adds a weight before it adds its
+	//  argument, so there may be one more weight than arguments.
+
+	private double[] weights = new double[4];
+	private int numWeights = 0;
+
+	/**
+	 *  Construct a new WAND operator with no arguments.  The arguments
+	 *  and their weights are added with addWeight and add.
+	 */
+	public QryopSlWAnd() {
+	}
+
+	/**
+	 *  Appends an argument to the list of query operator arguments.
+	 *  Its weight must have been added first.
+	 *  @param {q} q The query argument (query operator) to append.
+	 *  @return void
+	 */
+	public void add (Qryop a) {
+		if (this.numWeights <= this.args.size())
+			QryEval.fatalError ("Error:  Missing weight in " + this.toString());
+
+		this.args.add(a);
+	}
+
+	/**
+	 *  Appends the weight of the next argument.
+	 *  @param weight The weight.
+	 */
+	public void addWeight (double weight) {
+		if (this.numWeights == this.weights.length)
+			this.weights = Arrays.copyOf (this.weights, 2 * this.numWeights);
+
+		this.weights[this.numWeights++] = weight;
+	}
+
+	/**
+	 *  Check whether the next token of the query should be a weight.
+	 *  @return true if every argument has been given a weight.
+	 */
+	public boolean needsWeight () {
+		return (this.numWeights == this.args.size());
+	}
+
+	/**
+	 *  Remove the weight of an argument that was never added (e.g.,
+	 *  because it was a stopword).
+	 */
+	public void removePendingWeight () {
+		if (this.numWeights > this.args.size())
+			this.numWeights --;
+	}
+
+	/**
+	 *  Get the weight of an argument.
+	 *  @param i The index of the argument.
+	 *  @return The weight.
+	 */
+	public double getWeight (int i) {
+		return this.weights[i];
+	}
+
+	/**
+	 *  Replace the arguments and their weights.  This is used by
+	 *  QryOptimizer when it removes arguments that match nothing.
+	 *  @param newArgs The arguments.
+	 *  @param newWeights The weight of each argument.
+	 */
+	void setArgs (ArrayList<Qryop> newArgs, double[] newWeights) {
+		this.args = newArgs;
+		this.weights = Arrays.copyOf (newWeights, Math.max (4, newArgs.size()));
+		this.numWeights = newArgs.size();
+	}
+
+	/**
+	 *  Evaluates the query operator, including any child operators and
+	 *  returns the result.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @return The result of evaluating the query.
+	 *  @throws IOException
+	 */
+	public QryResult evaluate(RetrievalModel r) throws IOException {
+
+		if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri)
+			return (evaluateUnion (r));
+
+		QryEval.fatalError ("Error:  #WAND requires the BM25 or Indri retrieval model");
+		return null;
+	}
+
+	/**
+	 *  Combine the scores of the query arguments for one document.  BM25
+	 *  uses the weighted sum.  Indri uses the weighted geometric mean of
+	 *  the probabilities, which is calculated with logs.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param scores The score (or default score) of each argument.
+	 *  @return The document's score.
+	 */
+	protected double combineScores (RetrievalModel r, double[] scores) {
+
+		double score = 0.0;
+
+		if (r instanceof RetrievalModelIndri) {
+			double totalWeight = this.getTotalWeight ();
+
+			for (int i=0; i<scores.length; i++)
+				score += this.getIndriWeight (i, totalWeight) * Math.log (scores[i]);
+
+			return Math.exp (score / this.getIndriDivisor (totalWeight));
+		}
+
+		for (int i=0; i<scores.length; i++)
+			score += this.weights[i] * scores[i];
+
+		return score;
+	}
+
+	/**
+	 *  Get the sum of the arguments' weights.
+	 *  @return The total weight.
+	 */
+	private double getTotalWeight () {
+		double totalWeight = 0.0;
+
+		for (int i=0; i<this.args.size(); i++)
+			totalWeight += this.weights[i];
+
+		return totalWeight;
+	}
+
+	/**
+	 *  Get the weight of an argument in Indri's weighted geometric mean.
+	 *  If the weights do not add up to more than 0, the mean would be
+	 *  NaN for every document, so the arguments are weighted equally.
+	 *  @param i The index of the argument.
+	 *  @param totalWeight The sum of the arguments' weights.
+	 *  @return The weight.
+	 */
+	private double getIndriWeight (int i, double totalWeight) {
+		return (totalWeight > 0.0) ? this.weights[i] : 1.0;
+	}
+
+	/**
+	 *  Get what the weighted sum of log probabilities is divided by in
+	 *  Indri's weighted geometric mean (see getIndriWeight).
+	 *  @param totalWeight The sum of the arguments' weights.
+	 *  @return The divisor.
+	 */
+	private double getIndriDivisor (double totalWeight) {
+		return (totalWeight > 0.0) ? totalWeight : this.args.size();
+	}
+
+	/*
+	 *  Calculate the default score for the specified document if it
+	 *  does not match the query operator.  This score is 0 for many
+	 *  retrieval models, but not all retrieval models.
+	 *  @param r A retrieval model that controls how the operator behaves.
+	 *  @param docid The internal id of the document that needs a default score.
+	 *  @return The default score.
+	 */
+	public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+		//  The arguments' default scores are combined as combineScores
+		//  does, without an array for each document.
+
+		if (r instanceof RetrievalModelIndri) {
+			double score = 0.0;
+			double totalWeight = this.getTotalWeight ();
+
+			for (int i=0; i<this.args.size(); i++)
+				score += this.getIndriWeight (i, totalWeight) *
+					Math.log (getDefaultScore (r, this.args.get(i), docid));
+
+			return Math.exp (score / this.getIndriDivisor (totalWeight));
+		}
+
+		return 0.0;
+	}
+
+	/*
+	 *  Return a string version of this query operator.
+	 *  @return The string version of this query operator.
+	 */
+	public String toString(){
+
+		String result = new String ();
+
+		for (int i=0; i<this.args.size(); i++)
+			result += this.weights[i] + " " + this.args.get(i).toString() + " ";
+
+		return ("#WAND( " + result + ")");
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ *  The BM25 retrieval model has three parameters:  k_1 (default 1.2)
+ *  and b (default 0.75) control how term frequency and document
+ *  length affect the score of a term, and k_3 (default 0) controls
+ *  the weight of query term frequency.  Query terms are not repeated
+ *  in the query trees that QryEval builds, so k_3 has no effect on
+ *  rankings.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class RetrievalModelBM25 extends RetrievalModel {
+
+  private double k_1 = 1.2;
+  private double b = 0.75;
+  private double k_3 = 0.0;
+
+  private CollectionStats stats;
+
+  /**
+   *  Constructor.
+   *  @param stats The collection statistics of the index.
+   */
+  public RetrievalModelBM25 (CollectionStats stats) {
+    this.stats = stats;
+  }
+
+  public CollectionStats getStats () {
+    return this.stats;
+  }
+
+  /**
+   * Set a retrieval model parameter.
+   * @param parameterName k_1, b, or k_3.
+   * @param parametervalue The parameter's value.
+   * @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter (String parameterName, double value) {
+
+    if (parameterName.equals ("k_1") && (value >= 0.0))
+      this.k_1 = value;
+    else if (parameterName.equals ("b") && (value >= 0.0) && (value <= 1.0))
+      this.b = value;
+    else if (parameterName.equals ("k_3") && (value >= 0.0))
+      this.k_3 = value;
+    else {
+      System.err.println ("Error: Invalid parameter for retrieval model " +
+			  "BM25: " + parameterName + "=" + value);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Set a retrieval model parameter.
+   * @param parameterName k_1, b, or k_3.
+   * @param parametervalue The parameter's value.
+   * @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter (String parameterName, String value) {
+    try {
+      return this.setParameter (parameterName, Double.parseDouble (value));
+    } catch (NumberFormatException e) {
+      System.err.println ("Error: Invalid parameter for retrieval model " +
+			  "BM25: " + parameterName + "=" + value);
+      return false;
+    }
+  }
+
+  /**
+   *  Calculate the BM25 score of a term in a document.  The RSJ
+   *  weight is floored at 0, so very common terms do not lower the
+   *  score of documents that contain them.
+   *  @param field The statistics of the field that the term occurs in.
+   *  @param df The document frequency of the term.
+   *  @param tf The term frequency of the term in the document.
+   *  @param docid The internal id of the document.
+   *  @return The score.
+   *  @throws IOException
+   */
+  public double getScore (CollectionStats.FieldStats field, int df, int tf,
+			  int docid) throws IOException {
+
+    double rsj = Math.max (0.0, Math.log ((field.docCount - df + 0.5) / (df + 0.5)));
+    double length = field.getDocLength (docid);
+    double tfWeight =
+      tf / (tf + this.k_1 * ((1.0 - this.b) + this.b * length / field.avgLength));
+
+    //  The user weight, (k_3 + 1) qtf / (k_3 + qtf), is 1 because qtf is 1.
+
+    return (rsj * tfWeight);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ *  The Indri retrieval model has two parameters:  mu (default 2500)
+ *  controls Dirichlet smoothing, and lambda (default 0.4) controls
+ *  Jelinek-Mercer smoothing with the collection language model.
+ *  Scores are probabilities.  A document that does not contain a
+ *  query term still gets a (default) score for it, so #AND and #OR
+ *  score every document that contains any of their arguments.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class RetrievalModelIndri extends RetrievalModel {
+
+  private double mu = 2500.0;
+  private double lambda = 0.4;
+
+  private CollectionStats stats;
+
+  /**
+   *  Constructor.
+   *  @param stats The collection statistics of the index.
+   */
+  public RetrievalModelIndri (CollectionStats stats) {
+    this.stats = stats;
+  }
+
+  public CollectionStats getStats () {
+    return this.stats;
+  }
+
+  /**
+   * Set a retrieval model parameter.
+   * @param parameterName mu or lambda.
+   * @param parametervalue The parameter's value.
+   * @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter (String parameterName, double value) {
+
+    if (parameterName.equals ("mu") && (value >= 0.0))
+      this.mu = value;
+    else if (parameterName.equals ("lambda") && (value >= 0.0) && (value <= 1.0))
+      this.lambda = value;
+    else {
+      System.err.println ("Error: Invalid parameter for retrieval model " +
+			  "Indri: " + parameterName + "=" + value);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Set a retrieval model parameter.
+   * @param parameterName mu or lambda.
+   * @param parametervalue The parameter's value.
+   * @return true if the parameter is set successfully, false otherwise.
+   */
+  public boolean setParameter (String parameterName, String value) {
+    try {
+      return this.setParameter (parameterName, Double.parseDouble (value));
+    } catch (NumberFormatException e) {
+      System.err.println ("Error: Invalid parameter for retrieval model " +
+			  "Indri: " + parameterName + "=" + value);
+      return false;
+    }
+  }
+
+  /**
+   *  Calculate the probability of a term in a document, smoothed with
+   *  the probability of the term in the collection.  Use tf 0 for the
+   *  default score of a document that does not contain the term.
+   *  @param field The statistics of the field that the term occurs in.
+   *  @param ctf The collection term frequency of the term.
+   *  @param tf The term frequency of the term in the document.
+   *  @param docid The internal id of the document.
+   *  @return The score.
+   *  @throws IOException
+   */
+  public double getScore (CollectionStats.FieldStats field, long ctf, int tf,
+			  int docid) throws IOException {
+
+    //  A term that never occurs would give every document a score of
+    //  0, so it is treated as if it occurred half a time.
+
+    double pMle = ((ctf > 0) ? ctf : 0.5) / field.sumLength;
+    double length = field.getDocLength (docid);
+
+    return ((1.0 - this.lambda) * (tf + this.mu * pMle) / (length + this.mu) +
+	    this.lambda * pMle);
+  }
+}
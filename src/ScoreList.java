@@ -2,6 +2,10 @@
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
  *
+ *  Document ids and scores are stored in parallel primitive arrays
+ *  that grow as entries are appended, so a score list does not
+ *  create an object per document.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
@@ -9,32 +13,16 @@ import java.util.*;
 
 public class ScoreList {
 
-  //  A little utilty class to create a <docid, score> object.
-
-  protected class ScoreListEntry {
-    private int docid;
-    private double score;
-
-    private ScoreListEntry(int docid, double score) {
-      this.docid = docid;
-      this.score = score;
-    }
-
-	public double getScore() {
-		return score;
-	}
+  //  Compares two documents that have the same score.  This is used
+  //  to break ties when a score list is sorted.
 
-	public void setScore(double score) {
-		this.score = score;
-	}
-    
-	public int getDocid() {
-		return docid;
-	}
-    
+  public interface DocidComparator {
+    public int compare (int docid1, int docid2);
   }
 
-  List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  private int[] docids = new int[8];
+  private double[] scores = new double[8];
+  private int size = 0;
 
   /**
    *  Append a document score to a score list.
@@ -43,7 +31,38 @@ public class ScoreList {
    *  @return void
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    if (this.size == this.docids.length)
+      this.grow (this.size + 1);
+
+    this.docids[this.size] = docid;
+    this.scores[this.size] = score;
+    this.size ++;
+  }
+
+  /**
+   *  Append several document scores to a score list.
+   *  @param docidArray An array that contains internal document ids.
+   *  @param scoreArray An array that contains the documents' scores.
+   *  @param from The index of the first entry to copy from the arrays.
+   *  @param count The number of entries to copy.
+   *  @return void
+   */
+  public void addAll(int[] docidArray, double[] scoreArray, int from, int count) {
+    if (this.size + count > this.docids.length)
+      this.grow (this.size + count);
+
+    System.arraycopy (docidArray, from, this.docids, this.size, count);
+    System.arraycopy (scoreArray, from, this.scores, this.size, count);
+    this.size += count;
+  }
+
+  /**
+   *  Append the entries of another score list to this score list.
+   *  @param list The score list to copy.
+   *  @return void
+   */
+  public void addAll(ScoreList list) {
+    this.addAll (list.docids, list.scores, 0, list.size);
   }
 
   /**
@@ -52,7 +71,7 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    return this.docids[n];
   }
 
   /**
@@ -61,7 +80,276 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    return this.scores[n];
+  }
+
+  /**
+   *  Find the first entry at or after index n whose document id is at
+   *  least target, by examining the entries one at a time.  The score
+   *  list must be in document id order.
+   *  @param n The index to start from.
+   *  @param target The smallest acceptable document id.
+   *  @return The index of the entry, or size() if there is none.
+   */
+  public int findNext(int n, int target) {
+    while ((n < this.size) && (this.docids[n] < target))
+      n ++;
+    return n;
+  }
+
+  /**
+   *  Find the first entry at or after index n whose document id is at
+   *  least target, by galloping: probe entries n+1, n+2, n+4, ... until
+   *  one is past the target, then binary search the last interval.
+   *  This is O(log d) for a jump of d entries, so it is much faster
+   *  than findNext when long jumps are likely.  The score list must be
+   *  in document id order.
+   *  @param n The index to start from.
+   *  @param target The smallest acceptable document id.
+   *  @return The index of the entry, or size() if there is none.
+   */
+  public int gallop(int n, int target) {
+
+    if ((n >= this.size) || (this.docids[n] >= target))
+      return n;
+
+    //  docids[low] < target.  Find high such that docids[high] >= target.
+
+    int low = n;
+    int step = 1;
+
+    while ((low + step < this.size) && (this.docids[low + step] < target)) {
+      low += step;
+      step <<= 1;
+    }
+
+    int high = Math.min (low + step, this.size);
+
+    //  Binary search for the first entry in (low, high] that is >= target.
+
+    low ++;
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+
+      if (this.docids[mid] < target)
+	low = mid + 1;
+      else
+	high = mid;
+    }
+
+    return low;
+  }
+
+  /**
+   *  Set the score of the n'th document.
+   *  @param n The index of the document.
+   *  @param score The document's new score.
+   *  @return void
+   */
+  public void setDocidScore(int n, double score) {
+    this.scores[n] = score;
+  }
+
+  /**
+   *  Get the number of documents in the score list.
+   *  @return The number of documents.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   *  Keep only the first n entries of the score list and release the
+   *  space used by the others.  This gives a compact list after the
+   *  top documents have been sorted to the front.
+   *  @param n The number of entries to keep.
+   *  @return void
+   */
+  public void truncate(int n) {
+    if (n < this.size)
+      this.size = n;
+
+    this.docids = Arrays.copyOf (this.docids, this.size);
+    this.scores = Arrays.copyOf (this.scores, this.size);
   }
 
+  /**
+   *  Sort the score list in place by descending score.  Documents
+   *  with the same score are ordered by the comparator.  Heapsort
+   *  is used because it needs no extra space and has no bad cases
+   *  when many scores are equal.
+   *  @param ties Orders documents that have the same score.
+   *  @return void
+   */
+  public void sort(DocidComparator ties) {
+    this.heapSort (0, this.size, ties);
+  }
+
+  /**
+   *  Reduce the score list to its k best entries, in sorted order.
+   *  This is O(n log k) instead of sorting the whole list.  Scores
+   *  are compared first; the tie comparator is used only for
+   *  documents whose score equals the k'th best score (which decide
+   *  what is at the boundary) and to order the k selected documents.
+   *  @param k The number of entries to keep.
+   *  @param ties Orders documents that have the same score.
+   *  @return void
+   */
+  public void selectTop(int k, DocidComparator ties) {
+
+    if (k >= this.size) {
+      this.sort (ties);
+      return;
+    }
+
+    if (k <= 0) {
+      this.truncate (0);
+      return;
+    }
+
+    //  Find the k'th best score with a bounded min-heap of scores.
+
+    double[] heap = new double[k];
+
+    for (int i = 0; i < k; i++)
+      heap[i] = this.scores[i];
+
+    for (int i = k / 2 - 1; i >= 0; i--)
+      siftDownMin (heap, i, k);
+
+    for (int i = k; i < this.size; i++) {
+      if (this.scores[i] > heap[0]) {
+	heap[0] = this.scores[i];
+	siftDownMin (heap, 0, k);
+      }
+    }
+
+    double threshold = heap[0];
+
+    //  Move the documents that score above the threshold to the
+    //  front, followed by the documents that score at the threshold.
+
+    int above = 0;
+
+    for (int i = 0; i < this.size; i++)
+      if (this.scores[i] > threshold)
+	this.swap (i, above++);
+
+    int tied = above;
+
+    for (int i = above; i < this.size; i++)
+      if (this.scores[i] == threshold)
+	this.swap (i, tied++);
+
+    //  Only the tied documents compete for the remaining k - above
+    //  places.  Keep the best of them in a heap whose root is the
+    //  worst document kept so far.
+
+    int needed = k - above;
+
+    for (int i = needed / 2 - 1; i >= 0; i--)
+      this.siftDown (above, i, needed, ties);
+
+    for (int i = above + needed; i < tied; i++) {
+      if (this.compare (i, above, ties) < 0) {
+	this.swap (i, above);
+	this.siftDown (above, 0, needed, ties);
+      }
+    }
+
+    this.truncate (k);
+    this.sort (ties);
+  }
+
+  /**
+   *  Compare the i'th and j'th entries in sorted order.
+   *  @return A negative number if entry i sorts before entry j.
+   */
+  private int compare(int i, int j, DocidComparator ties) {
+    if (this.scores[i] > this.scores[j])
+      return -1;
+    else if (this.scores[i] < this.scores[j])
+      return 1;
+
+    return ties.compare (this.docids[i], this.docids[j]);
+  }
+
+  /**
+   *  Heapsort the entries from start to end (exclusive).
+   */
+  private void heapSort(int start, int end, DocidComparator ties) {
+    int n = end - start;
+
+    for (int i = n / 2 - 1; i >= 0; i--)
+      this.siftDown (start, i, n, ties);
+
+    for (int last = n - 1; last > 0; last--) {
+      this.swap (start, start + last);
+      this.siftDown (start, 0, last, ties);
+    }
+  }
+
+  /**
+   *  Restore the heap property below entry i of the heap that begins
+   *  at entry base and has n entries.  The heap keeps the entry that
+   *  sorts last at its root.
+   */
+  private void siftDown(int base, int i, int n, DocidComparator ties) {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= n)
+	return;
+
+      if ((child + 1 < n) && (this.compare (base + child + 1, base + child, ties) > 0))
+	child ++;
+
+      if (this.compare (base + child, base + i, ties) <= 0)
+	return;
+
+      this.swap (base + i, base + child);
+      i = child;
+    }
+  }
+
+  /**
+   *  Restore the min-heap property below entry i of a heap of scores.
+   */
+  private static void siftDownMin(double[] heap, int i, int n) {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= n)
+	return;
+
+      if ((child + 1 < n) && (heap[child + 1] < heap[child]))
+	child ++;
+
+      if (heap[child] >= heap[i])
+	return;
+
+      double tmp = heap[i];
+      heap[i] = heap[child];
+      heap[child] = tmp;
+      i = child;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+
+    this.docids[i] = this.docids[j];
+    this.scores[i] = this.scores[j];
+    this.docids[j] = docid;
+    this.scores[j] = score;
+  }
+
+  private void grow(int minSize) {
+    int newSize = Math.max (minSize, 2 * this.docids.length);
+
+    this.docids = Arrays.copyOf (this.docids, newSize);
+    this.scores = Arrays.copyOf (this.scores, newSize);
+  }
 }
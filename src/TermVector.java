@@ -4,12 +4,21 @@
  *    stems:      The field's vocabulary.  The 0'th entry is an empty string.
  *                It indicates a stopword.
  *    stemsFreq:  The frequency (tf) of each entry in stems.
- *    positions:  The index of the stem that occurred at this position. 
+ *    positions:  The index of the stem that occurred at this position.
+ *
+ *  A TermVector does not change after it is built, so TermVectors are
+ *  shared.  get() returns TermVectors from a bounded cache, which
+ *  helps workloads such as pseudo-relevance feedback that look at the
+ *  same documents repeatedly.  The df and ctf of stems are kept in a
+ *  second bounded cache that all TermVectors share.  Both caches are
+ *  BoundedCaches, so threads do not lock to find cached values, and
+ *  threads that miss on the same key build the value once.
  *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.Term;
@@ -18,75 +27,178 @@ import org.apache.lucene.index.TermsEnum;
 
 public class TermVector {
 
+  /**
+   *  The document frequency (df) and collection term frequency (ctf)
+   *  of a term.
+   */
+  public static class TermStats {
+    public final int df;
+    public final long ctf;
+
+    TermStats(int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  //  The maximum number of TermVectors and TermStats that are cached.
+  //  0 disables a cache.
+
+  public static int cacheSize = 1000;
+  public static int statsCacheSize = 100000;
+
+  private static BoundedCache<String, TermVector> cache =
+    new BoundedCache<String, TermVector>();
+
+  private static BoundedCache<String, TermStats> statsCache =
+    new BoundedCache<String, TermStats>();
+
   /**
    * Class variables.
    */
-  Terms luceneTerms;
+  String field;
   int[] positions;
   String[] stems;
   int[] stemsFreq;
-  Term[] terms;
+  TermStats[] stemsStats;	// Filled in when they are requested
 
   /**
    *  Constructor.  Create a TermVector for a field in a document.
+   *  The Lucene term vector is read in one pass:  each stem's
+   *  positions are read once, and the positions array grows as
+   *  larger positions are found.
    *  @return {@link TermVector}
    */
   public TermVector(int docId, String fieldName) throws IOException {
 
+    this.field = fieldName;
+
     //  Fetch the term vector.
 
-    this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+    Terms luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+    QryMetrics.termVectorRead ();
+
+    //  A document that has no text in the field has no term vector.
+    //  Its TermVector is empty.
+
+    if (luceneTerms == null) {
+      stems = new String[1];
+      stemsFreq = new int[1];
+      stemsStats = new TermStats[1];
+      positions = new int[0];
+      return;
+    }
 
     //  Allocate space for stems. The 0'th stem indicates a stopword.
 
-    int stemsLength = (int) this.luceneTerms.size();
+    int stemsLength = (int) luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
+    stemsStats = new TermStats[stemsLength + 1];
+
+    //  The field length is a good guess of the last position.
+
+    long fieldLength = luceneTerms.getSumTotalTermFreq();
+    int[] stemAt = new int[(int) Math.max (16, fieldLength + 1)];
+    int positionsLength = 1;
 
     //  Iterate through the terms, filling in the stem and frequency
-    //  information, and finding the position of the last term. The
-    //  0'th term indicates a stopword, so this loop starts at i=1.
+    //  information and the stem at each position. The 0'th term
+    //  indicates a stopword, so this loop starts at i=1.
+
+    TermsEnum ithTerm = luceneTerms.iterator(null);
+    DocsAndPositionsEnum ithPositions = null;
 
-    TermsEnum ithTerm = this.luceneTerms.iterator(null);
-    
-    int positionsLength = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
 
-      //  Find the position of the last (indexed) term in the
-      //  document, so that the positions array can be created and
-      //  populated later. The last position for each term is the
-      //  largest, so ignore the positions before it.
-
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+      ithPositions = ithTerm.docsAndPositions(null, ithPositions);
 
       ithPositions.nextDoc(); /* Initialize iPositions */
 
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
+      for (int j = ithPositions.freq(); j > 0; j--) {
+	int position = ithPositions.nextPosition();
 
-      positionsLength = Math.max(positionsLength, ithPositions.nextPosition());
+	if (position >= stemAt.length)
+	  stemAt = Arrays.copyOf (stemAt, Math.max (position + 1, 2 * stemAt.length));
+
+	stemAt[position] = i;
+	positionsLength = Math.max (positionsLength, position + 1);
+      }
     }
 
-    //  Create and fill the positions array. Note that the stems array
-    //  uses stem 0 to indicate a stopword, so "real" stems have
-    //  indexs 1 through length+1.
+    positions = (positionsLength == stemAt.length) ?
+      stemAt : Arrays.copyOf (stemAt, positionsLength);
+  }
 
-    positions = new int[positionsLength + 1];
+  /**
+   *  Get the TermVector for a field in a document, from the cache if
+   *  it is there.
+   *  @param docId The internal document id.
+   *  @param fieldName The field.
+   *  @return The TermVector.
+   *  @throws IOException
+   */
+  public static TermVector get(final int docId, final String fieldName) throws IOException {
 
-    ithTerm = this.luceneTerms.iterator(null);
+    String key = fieldName + ":" + docId;
+    TermVector vector = (cacheSize > 0) ? cache.get (key) : null;
 
-    for (int i = 0; ithTerm.next() != null; i++) {
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+    if (vector == null) {
+      QryMetrics.termVectorCacheLookup (false);
+      vector = cache.load (key, cacheSize, new BoundedCache.Loader<TermVector>() {
+	  public TermVector load() throws IOException {
+	    return new TermVector (docId, fieldName);
+	  }
+	});
+    } else {
+      QryMetrics.termVectorCacheLookup (true);
+    }
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
+    return vector;
+  }
+
+  /**
+   *  Get the number of TermVectors in the cache.
+   */
+  static int getCacheSize() {
+    return cache.size ();
+  }
+
+  /**
+   *  Get the number of TermStats in the cache.
+   */
+  static int getStatsCacheSize() {
+    return statsCache.size ();
+  }
+
+  /**
+   *  Get the df and ctf of a term, from the cache if they are there.
+   *  @param fieldName The field.
+   *  @param stem The processed term string.
+   *  @return The term's statistics.
+   *  @throws IOException
+   */
+  public static TermStats getTermStats(String fieldName, String stem) throws IOException {
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
+    String key = fieldName + ":" + stem;
+    TermStats stats = (statsCacheSize > 0) ? statsCache.get (key) : null;
+
+    if (stats == null) {
+      QryMetrics.termStatsCacheLookup (false);
+      final Term term = new Term (fieldName, stem);
+      stats = statsCache.load (key, statsCacheSize, new BoundedCache.Loader<TermStats>() {
+	  public TermStats load() throws IOException {
+	    return new TermStats (QryEval.READER.docFreq (term),
+				  QryEval.READER.totalTermFreq (term));
+	  }
+	});
+    } else {
+      QryMetrics.termStatsCacheLookup (true);
     }
+
+    return stats;
   }
 
   /**
@@ -144,7 +256,7 @@ public class TermVector {
   public int stemsLength() {
     return this.stems.length;
   }
-  
+
   /**
    * Returns ctf of the i'th stem.
    * @param i Index of the stem.
@@ -152,9 +264,9 @@ public class TermVector {
    * @throws IOException.
    */
   public long totalStemFreq(int i) throws IOException {
-    return QryEval.READER.totalTermFreq(terms[i]);
+    return stemStats(i).ctf;
   }
-  
+
   /**
    * Returns the df of the i'th stem.
    * @param i Index of the stem.
@@ -162,7 +274,23 @@ public class TermVector {
    * @throws IOException.
    */
   public int stemDf(int i) throws IOException {
-    return QryEval.READER.docFreq(terms[i]);
+    return stemStats(i).df;
+  }
+
+  /**
+   * Returns the df and ctf of the i'th stem.  TermVectors are shared,
+   * so two threads may look up the same stem; they store the same
+   * statistics.
+   */
+  private TermStats stemStats(int i) throws IOException {
+    TermStats stats = stemsStats[i];
+
+    if (stats == null) {
+      stats = getTermStats(this.field, this.stems[i]);
+      stemsStats[i] = stats;
+    }
+
+    return stats;
   }
-  
+
 }